@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * BlockManifest Class, the strong hashes of the fixed-size blocks of a
+ * file version, computed in parallel, so a client holding an older version
+ * only fetches the blocks that differ
+ */
+public class BlockManifest {
+    // size of one block
+    static final int BLOCK_SIZE = 1 << 16;
+    // length of one block hash
+    static final int HASH_LEN = 32;
+    // blocks hashed by one task before it stops splitting
+    private static final int LEAF_BLOCKS = 16;
+
+    /**
+     * Get the number of blocks of a file
+     *
+     * @param size the size of file
+     * @return The number of blocks
+     */
+    static int blocks(long size) {
+        return (int)((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * Hash the blocks of a file
+     *
+     * @param reader reads the file
+     * @param size the size of file
+     * @return The block hashes, HASH_LEN bytes per block
+     */
+    public static byte[] compute(ContentReader reader, long size)
+        throws IOException {
+        byte[] hashes = new byte[blocks(size) * HASH_LEN];
+        Hash hash = new Hash(hashes, 0, blocks(size), size) {
+            @Override
+            void read(long pos, ByteBuffer dst) throws IOException {
+                while (dst.hasRemaining()
+                    && reader.read(dst, pos + dst.position()) > 0);
+            }
+        };
+        ForkJoinPool.commonPool().invoke(hash);
+        if (hash.failure != null)
+            throw hash.failure;
+        return hashes;
+    }
+
+    /**
+     * Hash the blocks of a file held in memory
+     *
+     * @param data view of the whole file
+     * @return The block hashes, HASH_LEN bytes per block
+     */
+    public static byte[] compute(ByteBuffer data) {
+        long size = data.limit();
+        byte[] hashes = new byte[blocks(size) * HASH_LEN];
+        ForkJoinPool.commonPool().invoke(
+            new Hash(hashes, 0, blocks(size), size) {
+                @Override
+                void read(long pos, ByteBuffer dst) {
+                    data.get((int)pos, dst.array(), 0, dst.remaining());
+                    dst.position(dst.limit());
+                }
+            });
+        return hashes;
+    }
+
+    /**
+     * Hash class, hashes a range of blocks and splits large ranges
+     */
+    private abstract static class Hash extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // where the hashes go
+        final byte[] hashes;
+        // first block of the range
+        final int from;
+        // block after the range
+        final int to;
+        // the size of file
+        final long size;
+        // first failure of the range and its subranges
+        IOException failure;
+
+        Hash(byte[] hashes, int from, int to, long size) {
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+        }
+
+        /**
+         * Read bytes of the file from a position until the buffer is full
+         *
+         * @param pos file position
+         * @param dst buffer backed by an array
+         */
+        abstract void read(long pos, ByteBuffer dst) throws IOException;
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_BLOCKS) {
+                int mid = (from + to) >>> 1;
+                Hash left = split(from, mid);
+                Hash right = split(mid, to);
+                invokeAll(left, right);
+                failure = left.failure != null ? left.failure : right.failure;
+                return;
+            }
+            MessageDigest digest = digest();
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            try {
+                for (int i = from; i < to; i++) {
+                    long pos = (long)i * BLOCK_SIZE;
+                    block.clear().limit((int)Math.min(BLOCK_SIZE, size - pos));
+                    read(pos, block);
+                    digest.update(block.array(), 0, block.position());
+                    digest.digest(hashes, i * HASH_LEN, HASH_LEN);
+                }
+            } catch (Exception e) {
+                failure = e instanceof IOException
+                    ? (IOException)e : new IOException(e);
+            }
+        }
+
+        /**
+         * Make a task for a subrange reading the same file
+         *
+         * @param from first block of the subrange
+         * @param to block after the subrange
+         * @return The task
+         */
+        private Hash split(int from, int to) {
+            Hash parent = this;
+            return new Hash(hashes, from, to, size) {
+                @Override
+                void read(long pos, ByteBuffer dst) throws IOException {
+                    parent.read(pos, dst);
+                }
+            };
+        }
+    }
+
+    /**
+     * Get a digest of the block hash
+     *
+     * @return A new SHA-256 digest
+     */
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
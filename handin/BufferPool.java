@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * BufferPool Class, reuses direct buffers for per fd buffering
+ */
+public class BufferPool {
+    // size of one buffer
+    static final int BUFFER_SIZE = 1 << 16;
+    // largest number of idle buffers kept
+    private static final int MAX_IDLE = 64;
+    // idle buffers
+    private static final ConcurrentLinkedQueue<ByteBuffer> idle =
+        new ConcurrentLinkedQueue<>();
+
+    /**
+     * Take a buffer from the pool, allocating one if none is idle
+     *
+     * @return A cleared direct buffer
+     */
+    public static ByteBuffer take() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool
+     *
+     * @param buffer the buffer no longer used
+     */
+    public static void give(ByteBuffer buffer) {
+        if (buffer != null && idle.size() < MAX_IDLE)
+            idle.offer(buffer);
+    }
+}
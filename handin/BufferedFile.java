@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * BufferedFile Class, a RandomAccessFile with a user-space read buffer and
+ * write-combining buffer, so small reads and writes do not each cost a
+ * syscall
+ */
+public class BufferedFile implements ProxyFile {
+    // the underlying file
+    private RandomAccessFile randomAccessFile;
+    // channel of the underlying file for positional I/O
+    private FileChannel channel;
+    // the pooled buffer, null until first used
+    private ByteBuffer buffer;
+    // file position of the first buffered byte
+    private long buffer_start;
+    // number of valid buffered bytes
+    private int buffer_len;
+    // whether the buffered bytes are pending writes
+    private boolean dirty;
+    // current file position
+    private long pos;
+
+    /**
+     * Constructor
+     *
+     * @param randomAccessFile the underlying file
+     */
+    public BufferedFile(RandomAccessFile randomAccessFile) {
+        this.randomAccessFile = randomAccessFile;
+        this.channel = randomAccessFile.getChannel();
+        this.pos = 0;
+    }
+
+    /**
+     * Read from the current position
+     *
+     * @param buf byte array of data to read
+     * @return Return byte number read, or -1 at the end of file
+     */
+    @Override
+    public int read(byte[] buf) throws IOException {
+        if (buf.length >= BufferPool.BUFFER_SIZE) {// large read, go direct
+            flush();
+            buffer_len = 0;
+            randomAccessFile.seek(pos);
+            int len = randomAccessFile.read(buf);
+            if (len > 0)
+                pos += len;
+            return len;
+        }
+        if (dirty)
+            flush();
+        int done = 0;
+        while (done < buf.length) {
+            if (pos < buffer_start || pos >= buffer_start + buffer_len) {
+                if (!fill())
+                    break;
+            }
+            int off = (int)(pos - buffer_start);
+            int n = Math.min(buf.length - done, buffer_len - off);
+            buffer.get(off, buf, done, n);
+            done += n;
+            pos += n;
+        }
+        return (done == 0 && buf.length > 0) ? -1 : done;
+    }
+
+    /**
+     * Write at the current position
+     *
+     * @param buf byte array of data to write
+     */
+    @Override
+    public void write(byte[] buf) throws IOException {
+        if (buf.length == 0)// nothing written, the file does not grow
+            return;
+        if (buf.length >= BufferPool.BUFFER_SIZE) {// large write, go direct
+            flush();
+            buffer_len = 0;
+            randomAccessFile.seek(pos);
+            randomAccessFile.write(buf);
+            pos += buf.length;
+            return;
+        }
+        if (!dirty || pos != buffer_start + buffer_len
+            || buffer_len + buf.length > BufferPool.BUFFER_SIZE) {
+            // not contiguous with the pending writes, start a new run
+            flush();
+            if (buffer == null)
+                buffer = BufferPool.take();
+            buffer_start = pos;
+            buffer_len = 0;
+            dirty = true;
+        }
+        buffer.put(buffer_len, buf);
+        buffer_len += buf.length;
+        pos += buf.length;
+    }
+
+    /**
+     * Write the pending writes to the file
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!dirty)
+            return;
+        ByteBuffer pending = buffer.duplicate();
+        pending.position(0).limit(buffer_len);
+        long off = buffer_start;
+        while (pending.hasRemaining())
+            off += channel.write(pending, off);
+        dirty = false;
+        // the written bytes stay valid for reading
+    }
+
+    /**
+     * Move the current position
+     *
+     * @param pos new file position
+     */
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0)
+            throw new IOException("Negative seek offset");
+        this.pos = pos;
+    }
+
+    /**
+     * Get the current position
+     *
+     * @return current file position
+     */
+    @Override
+    public long getFilePointer() throws IOException {
+        return pos;
+    }
+
+    /**
+     * Get the size of file including pending writes
+     *
+     * @return size of the file
+     */
+    @Override
+    public long length() throws IOException {
+        long length = randomAccessFile.length();
+        if (dirty)
+            length = Math.max(length, buffer_start + buffer_len);
+        return length;
+    }
+
+    /**
+     * Flush pending writes, return the buffer and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            BufferPool.give(buffer);
+            buffer = null;
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Load the buffer from the current position
+     *
+     * @return True if any byte was loaded, false at the end of file
+     */
+    private boolean fill() throws IOException {
+        if (buffer == null)
+            buffer = BufferPool.take();
+        buffer.clear();
+        buffer_start = pos;
+        buffer_len = 0;
+        int n;
+        while (buffer.hasRemaining()
+            && (n = channel.read(buffer, pos + buffer_len)) > 0)
+            buffer_len += n;
+        return buffer_len > 0;
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * CacheStore interface, storage backend of the cached versions on the proxy
+ */
+public interface CacheStore {
+
+    Writer create(String path, long size) throws IOException;
+    void adopt(String path, File file) throws IOException;
+    ByteBuffer map(String path) throws IOException;
+    File file(String path);
+    void delete(String path);
+
+    /**
+     * Writer interface, a new cached blob which becomes visible on commit
+     */
+    interface Writer extends WritableByteChannel {
+
+        void commit() throws IOException;
+
+    }
+}
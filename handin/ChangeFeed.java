@@ -0,0 +1,137 @@
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ChangeFeed Class, follows the change log of the server so the proxy
+ * revalidates its whole cache with one call per interval, cached versions
+ * made stale by other proxies are dropped, and opens of cached files known
+ * to be current within the interval skip the server
+ */
+public class ChangeFeed {
+    // the server interface
+    private final ServerInterface server;
+    // the cache revalidated
+    private final myCache cache;
+    // time between syncs, and the longest the known files are trusted
+    private final long interval;
+    // sequence number of the last change applied, -1 for none
+    private long sequence = -1;
+    // time of the last sync, in nanoseconds
+    private long synced;
+    // whether a sync has succeeded
+    private boolean in_sync;
+    // information of files known to be current, by relative path
+    private final Map<String, long[]> known = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param server interface for communication with server
+     * @param cache the cache revalidated
+     * @param interval time between syncs in milliseconds
+     */
+    public ChangeFeed(ServerInterface server, myCache cache, long interval) {
+        this.server = server;
+        this.cache = cache;
+        this.interval = interval;
+    }
+
+    /**
+     * Start syncing in the background
+     */
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                sync();
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "change-feed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the information of a file known to be current
+     *
+     * @param relative_path relative path of file
+     * @return The file information as from get_info, or null if unknown
+     * or the last sync is too old
+     */
+    public synchronized long[] info(String relative_path) {
+        if (!in_sync || System.nanoTime() - synced > interval * 1000000)
+            return null;
+        return known.get(relative_path);
+    }
+
+    /**
+     * Get the sequence number of the last change applied, read before
+     * get_info so the result can be learned afterwards
+     *
+     * @return The sequence number
+     */
+    public synchronized long sequence() {
+        return sequence;
+    }
+
+    /**
+     * Remember the information of a file from get_info, unless a sync
+     * ran since it was asked for
+     *
+     * @param relative_path relative path of file
+     * @param info the file information
+     * @param sequence the sequence number read before get_info
+     */
+    public synchronized void learn(String relative_path, long[] info,
+            long sequence) {
+        // only regular files, a directory changes with its children
+        if (info == null || info[0] != 1 || info[1] != 0)
+            return;
+        if (in_sync && sequence == this.sequence)
+            known.put(relative_path, info.clone());
+    }
+
+    /**
+     * Forget a file this proxy changed, until the change is synced
+     *
+     * @param relative_path relative path of file
+     */
+    public synchronized void forget(String relative_path) {
+        known.remove(relative_path);
+    }
+
+    /**
+     * Fetch the changes since the last sync and apply them, a proxy that
+     * fell behind the log or a restarted server forgets every file
+     */
+    public void sync() {
+        long since;
+        // the batch is as fresh as the time it was asked for
+        long now = System.nanoTime();
+        synchronized (this) {
+            since = sequence;
+        }
+        ChangeLog.Batch batch;
+        try {
+            batch = new ChangeLog.Batch(server.get_changes(since));
+        } catch (RemoteException e) {// the known files age out meanwhile
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            if (!batch.complete)
+                known.clear();
+            for (String path : batch.paths)
+                known.remove(path);
+            sequence = batch.sequence;
+            synced = now;
+            in_sync = true;
+        }
+        for (int i = 0; i < batch.paths.length; i++)
+            cache.drop_stale(batch.paths[i], batch.versions[i]);
+    }
+}
@@ -0,0 +1,144 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+/**
+ * ChangeLog Class, a bounded log of the version changes of the server,
+ * each change gets the next sequence number so a proxy asks for all the
+ * changes after the last one it saw, older changes are dropped and a proxy
+ * that fell behind them revalidates everything
+ */
+public class ChangeLog {
+    // relative paths of the kept changes, in a ring
+    private final String[] paths;
+    // versions of the kept changes, 0 for unlinked files
+    private final int[] versions;
+    // sequence number of the last change
+    private long sequence;
+    // number of kept changes
+    private int count;
+
+    /**
+     * Constructor, the sequence numbers start from the clock so the ones
+     * of an earlier run are never taken for the current run
+     *
+     * @param capacity number of changes kept
+     */
+    public ChangeLog(int capacity) {
+        capacity = Math.max(1, capacity);
+        paths = new String[capacity];
+        versions = new int[capacity];
+        sequence = System.currentTimeMillis() * 1000;
+    }
+
+    /**
+     * Record a change
+     *
+     * @param path relative path of file
+     * @param version the new version number, 0 if the file is unlinked
+     * @return The sequence number of the change
+     */
+    public synchronized long record(String path, int version) {
+        sequence++;
+        int slot = (int)(sequence % paths.length);
+        paths[slot] = path;
+        versions[slot] = version;
+        count = Math.min(count + 1, paths.length);
+        return sequence;
+    }
+
+    /**
+     * Encode the changes after a sequence number, a change of a file
+     * overrides its earlier ones
+     *
+     * @param since the last sequence number seen, -1 for none
+     * @return The encoded batch, incomplete if changes after since were
+     * dropped or since is not of this run
+     */
+    public synchronized byte[] changes(long since) {
+        boolean complete = since >= sequence - count && since <= sequence;
+        int from = complete ? (int)(sequence - since) : 0;
+        String[] names = new String[from];
+        int[] values = new int[from];
+        int n = 0;
+        HashSet<String> seen = new HashSet<>();
+        // newest first, so only the last change of a file is sent
+        for (long seq = sequence; seq > sequence - from; seq--) {
+            int slot = (int)(seq % paths.length);
+            if (!seen.add(paths[slot]))
+                continue;
+            names[n] = paths[slot];
+            values[n] = versions[slot];
+            n++;
+        }
+        // back to the oldest change first
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            String name = names[i];
+            names[i] = names[j];
+            names[j] = name;
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        return encode(sequence, complete, names, values, n);
+    }
+
+    /**
+     * Encode a batch of changes
+     *
+     * @param sequence sequence number of the last change
+     * @param complete whether every change after the asked one is included
+     * @param paths relative paths of the changed files, oldest change first
+     * @param versions new version numbers, 0 for unlinked files
+     * @param n number of changes
+     * @return The encoded batch
+     */
+    static byte[] encode(long sequence, boolean complete, String[] paths,
+            int[] versions, int n) {
+        byte[][] names = new byte[n][];
+        int size = 13;
+        for (int i = 0; i < n; i++) {
+            names[i] = paths[i].getBytes(StandardCharsets.UTF_8);
+            size += 8 + names[i].length;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(size);
+        batch.putLong(sequence).put((byte)(complete ? 1 : 0)).putInt(n);
+        for (int i = 0; i < n; i++)
+            batch.putInt(names[i].length).put(names[i]).putInt(versions[i]);
+        return batch.array();
+    }
+
+    /**
+     * Batch Class, the changes returned to a proxy
+     */
+    public static class Batch {
+        // sequence number of the last change
+        public final long sequence;
+        // whether every change after the asked sequence number is included
+        public final boolean complete;
+        // relative paths of the changed files, oldest change first
+        public final String[] paths;
+        // new version numbers, 0 for unlinked files
+        public final int[] versions;
+
+        /**
+         * Constructor, decodes a batch
+         *
+         * @param bytes the encoded batch
+         */
+        public Batch(byte[] bytes) {
+            ByteBuffer batch = ByteBuffer.wrap(bytes);
+            sequence = batch.getLong();
+            complete = batch.get() == 1;
+            int n = batch.getInt();
+            paths = new String[n];
+            versions = new int[n];
+            for (int i = 0; i < n; i++) {
+                byte[] name = new byte[batch.getInt()];
+                batch.get(name);
+                paths[i] = new String(name, StandardCharsets.UTF_8);
+                versions[i] = batch.getInt();
+            }
+        }
+    }
+}
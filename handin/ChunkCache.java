@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * ChunkCache Class, a server read cache of file blocks keyed by path,
+ * content identity and block offset, held in off-heap slabs under a byte budget
+ * and evicted by CLOCK, concurrent misses on one block load it once
+ */
+public class ChunkCache {
+    // size of one cached block
+    static final int BLOCK_SIZE = 1 << 18;
+    // number of blocks carved from one slab
+    private static final int SLAB_BLOCKS = 16;
+    // block frames, slices of the off-heap slabs
+    private ByteBuffer[] frames;
+    // key of the block held by each frame, null if the frame is free
+    private Key[] owners;
+    // valid bytes in each frame
+    private int[] lengths;
+    // number of readers copying out of each frame
+    private int[] pins;
+    // CLOCK reference bit of each frame
+    private boolean[] referenced;
+    // whether each frame is still being loaded
+    private boolean[] loading;
+    // block key and frame mapping
+    private Map<Key, Integer> index;
+    // CLOCK hand
+    private int hand;
+
+    /**
+     * Constructor
+     *
+     * @param budget bytes of off-heap memory to use
+     */
+    public ChunkCache(long budget) {
+        int count = (int)Math.max(1, budget / BLOCK_SIZE);
+        frames = new ByteBuffer[count];
+        ByteBuffer slab = null;
+        for (int i = 0; i < count; i++) {
+            if (i % SLAB_BLOCKS == 0)
+                slab = ByteBuffer.allocateDirect(
+                    Math.min(SLAB_BLOCKS, count - i) * BLOCK_SIZE);
+            slab.clear().position((i % SLAB_BLOCKS) * BLOCK_SIZE)
+                .limit((i % SLAB_BLOCKS + 1) * BLOCK_SIZE);
+            frames[i] = slab.slice();
+        }
+        owners = new Key[count];
+        lengths = new int[count];
+        pins = new int[count];
+        referenced = new boolean[count];
+        loading = new boolean[count];
+        index = new HashMap<>();
+    }
+
+    /**
+     * Key class, one block of one version of a file
+     */
+    private static class Key {
+        // full path of file
+        final String path;
+        // identity of the content, a version number can be reused after
+        // the file is unlinked and created again
+        final Object content;
+        // block number in the file
+        final long block;
+
+        Key(String path, Object content, long block) {
+            this.path = path;
+            this.content = content;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key)other;
+            return block == key.block && content.equals(key.content)
+                && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, content, block);
+        }
+    }
+
+    /**
+     * Read a range of a file version through the cache
+     *
+     * @param path full path of file, or the id of content shared by paths
+     * @param content identity of the content, equal only for the same 
+     * content of the path
+     * @param reader reads the version, for misses
+     * @param buf array the range is copied into
+     * @param off file position of the range
+     * @return Number of bytes read, less than the array at the end of file
+     */
+    public int read(String path, Object content, ContentReader reader,
+            byte[] buf, long off) throws IOException {
+        int done = 0;
+        while (done < buf.length) {
+            long pos = off + done;
+            long block = pos / BLOCK_SIZE;
+            int from = (int)(pos % BLOCK_SIZE);
+            int n = Math.min(buf.length - done, BLOCK_SIZE - from);
+            int frame = acquire(new Key(path, content, block), reader);
+            if (frame == -1) {// every frame is pinned, read directly
+                int got = read_fully(reader, ByteBuffer.wrap(buf, done, n),
+                    pos);
+                done += got;
+                if (got < n)
+                    break;
+                continue;
+            }
+            try {
+                n = Math.max(0, Math.min(n, lengths[frame] - from));
+                frames[frame].get(from, buf, done, n);
+            } finally {
+                release(frame);
+            }
+            done += n;
+            if (from + n < BLOCK_SIZE)// the block ends the file
+                break;
+        }
+        return done;
+    }
+
+    /**
+     * Drop every cached block of a file, after a commit or an unlink
+     *
+     * @param path full path of file
+     */
+    public synchronized void invalidate(String path) {
+        Iterator<Map.Entry<Key, Integer>> entries =
+            index.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Integer> entry = entries.next();
+            if (!entry.getKey().path.equals(path))
+                continue;
+            // pinned frames are reused once their readers are done
+            owners[entry.getValue()] = null;
+            entries.remove();
+        }
+    }
+
+    /**
+     * Pin the frame of a block, loading it on a miss
+     *
+     * @param key the block
+     * @param reader reads the version
+     * @return The pinned frame, or -1 if no frame is free
+     */
+    private int acquire(Key key, ContentReader reader) throws IOException {
+        int frame;
+        synchronized (this) {
+            while (true) {
+                Integer hit = index.get(key);
+                if (hit == null)
+                    break;
+                if (!loading[hit]) {
+                    pins[hit]++;
+                    referenced[hit] = true;
+                    return hit;
+                }
+                try {// another reader is loading the block
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            frame = victim();
+            if (frame == -1)
+                return -1;
+            owners[frame] = key;
+            loading[frame] = true;
+            pins[frame] = 1;
+            referenced[frame] = true;
+            index.put(key, frame);
+        }
+        int length = -1;
+        try {
+            ByteBuffer dst = frames[frame].duplicate();
+            dst.clear();
+            length = read_fully(reader, dst, key.block * BLOCK_SIZE);
+        } finally {
+            synchronized (this) {
+                loading[frame] = false;
+                lengths[frame] = Math.max(0, length);
+                if (length == -1) {// failed, forget the block
+                    if (owners[frame] == key) {
+                        index.remove(key);
+                        owners[frame] = null;
+                    }
+                    pins[frame] = 0;
+                }
+                notifyAll();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Unpin a frame
+     *
+     * @param frame the frame
+     */
+    private synchronized void release(int frame) {
+        pins[frame]--;
+    }
+
+    /**
+     * Find a frame to reuse with the CLOCK hand
+     *
+     * @return A free frame, or -1 if every frame is pinned
+     */
+    private int victim() {
+        for (int i = 0; i < 2 * frames.length; i++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (pins[frame] > 0)
+                continue;
+            if (owners[frame] == null)
+                return frame;
+            if (referenced[frame]) {// second chance
+                referenced[frame] = false;
+                continue;
+            }
+            index.remove(owners[frame]);
+            owners[frame] = null;
+            return frame;
+        }
+        return -1;
+    }
+
+    /**
+     * Read until the buffer is full or the file ends
+     *
+     * @param reader reads the version
+     * @param dst the buffer
+     * @param pos file position to read from
+     * @return Number of bytes read
+     */
+    private static int read_fully(ContentReader reader, ByteBuffer dst,
+            long pos) throws IOException {
+        int start = dst.position();
+        int n;
+        while (dst.hasRemaining()
+            && (n = reader.read(dst, pos + dst.position() - start)) > 0);
+        return dst.position() - start;
+    }
+}
@@ -0,0 +1,608 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ChunkStore Class, a content-addressed store of the files the server
+ * writes, each file version is a manifest of content-defined chunks and
+ * each distinct chunk is stored once under its hash and reference counted,
+ * so identical files and shared regions take disk space and writes once
+ */
+public class ChunkStore {
+    // smallest stored chunk, except the last one
+    private static final int MIN_CHUNK = 1 << 14;
+    // stored chunk size the cut masks aim at
+    private static final int AVG_CHUNK = 1 << 16;
+    // largest stored chunk
+    private static final int MAX_CHUNK = 1 << 18;
+    // suffix of files being written
+    private static final String TEMP = ".tmp";
+    // the server root directory
+    private String root_path;
+    // directory of the chunks, named by their hashes
+    private File chunk_dir;
+    // directory of the manifests, laid out like the root
+    private File path_dir;
+    // whether new chunks and manifests are forced to disk
+    private boolean durable;
+    // chunk name and reference count mapping
+    private Map<String, Integer> refs;
+    // names of the chunks being written
+    private Set<String> writing;
+    // full path and live blob mapping
+    private Map<String, Blob> live;
+    // path@version and superseded blob mapping, kept for their readers
+    private Map<String, Blob> snapshots;
+
+    /**
+     * Constructor, loads the manifests and drops unreferenced chunks
+     *
+     * @param root_path the server root directory
+     * @param dir directory of the store
+     * @param durable whether new chunks and manifests are forced to disk
+     */
+    public ChunkStore(String root_path, File dir, boolean durable)
+        throws IOException {
+        this.root_path = root_path;
+        this.durable = durable;
+        chunk_dir = new File(dir, "chunks");
+        path_dir = new File(dir, "paths");
+        chunk_dir.mkdirs();
+        path_dir.mkdirs();
+        refs = new HashMap<>();
+        writing = new HashSet<>();
+        live = new HashMap<>();
+        snapshots = new HashMap<>();
+        load(path_dir);
+        sweep();
+    }
+
+    /**
+     * Blob class, the content of one version of a file
+     */
+    public static class Blob {
+        // hashes of the chunks, HASH_LEN bytes each
+        final byte[] hashes;
+        // file position of each chunk, then the size of file
+        final long[] offsets;
+        // CRC32C of the content
+        final long hash;
+        // id of the content, the same for identical files
+        final String id;
+        // number of open readers
+        private int readers;
+        // whether the chunks go once the last reader is done
+        private boolean dropped;
+
+        /**
+         * Constructor
+         *
+         * @param hashes hashes of the chunks
+         * @param lengths lengths of the chunks
+         * @param hash CRC32C of the content
+         */
+        Blob(byte[] hashes, int[] lengths, long hash) {
+            this.hashes = hashes;
+            this.hash = hash;
+            offsets = new long[lengths.length + 1];
+            for (int i = 0; i < lengths.length; i++)
+                offsets[i + 1] = offsets[i] + lengths[i];
+            try {
+                id = '#' + HexFormat.of().formatHex(
+                    MessageDigest.getInstance("SHA-256").digest(hashes));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Get the size of the content
+         *
+         * @return The size of file
+         */
+        long length() {
+            return offsets[offsets.length - 1];
+        }
+
+        /**
+         * Get the number of chunks
+         *
+         * @return The number of chunks
+         */
+        int chunks() {
+            return offsets.length - 1;
+        }
+
+        /**
+         * Get the length of a chunk
+         *
+         * @param i chunk number
+         * @return The length of the chunk
+         */
+        int length(int i) {
+            return (int)(offsets[i + 1] - offsets[i]);
+        }
+
+        /**
+         * Check whether another blob has the same content
+         *
+         * @param other the other blob, or null
+         * @return True if the content is the same
+         */
+        boolean same(Blob other) {
+            return other != null && Arrays.equals(hashes, other.hashes);
+        }
+    }
+
+    /**
+     * Reader class, positional reads of a blob, the chunk being read is
+     * kept open between calls
+     */
+    public class Reader implements ContentReader {
+        // the blob being read
+        private final Blob blob;
+        // chunk number of the open channel, -1 if none
+        private int current = -1;
+        // channel of the current chunk
+        private FileChannel channel;
+
+        Reader(Blob blob) {
+            this.blob = blob;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst, long pos)
+            throws IOException {
+            if (pos >= blob.length())
+                return -1;
+            int start = dst.position();
+            while (dst.hasRemaining() && pos < blob.length()) {
+                int i = Arrays.binarySearch(blob.offsets, pos);
+                if (i < 0)// inside the chunk before the insertion point
+                    i = -i - 2;
+                if (i != current) {
+                    close_channel();
+                    channel = FileChannel.open(chunk_file(name(blob, i))
+                        .toPath(), StandardOpenOption.READ);
+                    current = i;
+                }
+                ByteBuffer part = dst.duplicate();
+                part.limit(part.position()
+                    + (int)Math.min(dst.remaining(), blob.offsets[i + 1] - pos));
+                int n = channel.read(part, pos - blob.offsets[i]);
+                if (n <= 0)
+                    throw new IOException("Truncated chunk " + name(blob, i));
+                dst.position(dst.position() + n);
+                pos += n;
+            }
+            return dst.position() - start;
+        }
+
+        /**
+         * Get the size of the blob
+         *
+         * @return The size of file
+         */
+        public long length() {
+            return blob.length();
+        }
+
+        /**
+         * Get the id of the content
+         *
+         * @return The content id
+         */
+        public String id() {
+            return blob.id;
+        }
+
+        /**
+         * Close the reader, a dropped blob is released by its last reader
+         */
+        public synchronized void close() {
+            close_channel();
+            synchronized (ChunkStore.this) {
+                if (--blob.readers == 0 && blob.dropped)
+                    release(blob);
+            }
+        }
+
+        /**
+         * Close the channel of the current chunk quietly
+         */
+        private void close_channel() {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+            current = -1;
+        }
+    }
+
+    /**
+     * Get the paths holding a live blob
+     *
+     * @return The full paths
+     */
+    public synchronized List<String> paths() {
+        return new ArrayList<>(live.keySet());
+    }
+
+    /**
+     * Get the live blob of a path
+     *
+     * @param path full path of file
+     * @return The blob, or null if the path is not in the store
+     */
+    public synchronized Blob get(String path) {
+        return live.get(path);
+    }
+
+    /**
+     * Get a superseded blob kept for its readers
+     *
+     * @param path full path of file
+     * @param version version number of the blob
+     * @return The blob, or null if it is gone
+     */
+    public synchronized Blob snapshot(String path, int version) {
+        return snapshots.get(path + '@' + version);
+    }
+
+    /**
+     * Open a blob for reading, its chunks stay until the reader is closed
+     *
+     * @param blob the blob
+     * @return The reader
+     */
+    public synchronized Reader open(Blob blob) {
+        blob.readers++;
+        return new Reader(blob);
+    }
+
+    /**
+     * Store the content of a staged file, only the chunks the store does
+     * not have yet are written, the blob is not live until linked
+     *
+     * @param stage the staged content
+     * @param hash CRC32C of the staged content
+     * @return The blob, holding references to its chunks
+     */
+    public Blob put(File stage, long hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(stage.toPath(),
+                StandardOpenOption.READ)) {
+            ContentChunker chunker =
+                new ContentChunker(MIN_CHUNK, AVG_CHUNK, MAX_CHUNK);
+            chunker.update(channel::read);
+            Blob blob = new Blob(chunker.hashes(), chunker.lengths(), hash);
+            // chunks this put writes, and chunks another put is writing
+            List<Integer> mine = new ArrayList<>();
+            List<Integer> others = new ArrayList<>();
+            synchronized (this) {
+                for (int i = 0; i < blob.chunks(); i++) {
+                    String name = name(blob, i);
+                    Integer count = refs.get(name);
+                    refs.put(name, count == null ? 1 : count + 1);
+                    if (count == null) {
+                        writing.add(name);
+                        mine.add(i);
+                    } else if (writing.contains(name)) {
+                        others.add(i);
+                    }
+                }
+            }
+            boolean stored = false;
+            try {
+                try {
+                    for (int i : mine)
+                        write_chunk(channel, blob, i);
+                } finally {
+                    synchronized (this) {
+                        for (int i : mine)
+                            writing.remove(name(blob, i));
+                        notifyAll();
+                    }
+                }
+                for (int i : others) {
+                    synchronized (this) {
+                        while (writing.contains(name(blob, i)))
+                            wait();
+                    }
+                    // its writer failed, the reference held keeps ours
+                    if (!chunk_file(name(blob, i)).isFile())
+                        write_chunk(channel, blob, i);
+                }
+                stored = true;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                if (!stored)
+                    drop(blob);
+            }
+            return blob;
+        }
+    }
+
+    /**
+     * Get an empty blob
+     *
+     * @return A blob without chunks
+     */
+    public Blob empty() {
+        return new Blob(new byte[0], new int[0], 0);
+    }
+
+    /**
+     * Make a blob the live content of a path, the manifest is replaced
+     * atomically
+     *
+     * @param path full path of file
+     * @param blob the blob
+     * @return The blob it replaced, still referenced, or null if none
+     */
+    public Blob link(String path, Blob blob) throws IOException {
+        File manifest = manifest_file(path);
+        manifest.getParentFile().mkdirs();
+        File temp = new File(manifest.getPath() + TEMP);
+        try (FileOutputStream file = new FileOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(file))) {
+            out.writeLong(blob.hash);
+            out.writeInt(blob.chunks());
+            for (int i = 0; i < blob.chunks(); i++) {
+                out.writeInt(blob.length(i));
+                out.write(blob.hashes, i * ContentChunker.HASH_LEN,
+                    ContentChunker.HASH_LEN);
+            }
+            out.flush();
+            if (durable)
+                file.getFD().sync();
+        }
+        Files.move(temp.toPath(), manifest.toPath(),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        if (durable)
+            force_dir(manifest.getParentFile());
+        synchronized (this) {
+            return live.put(path, blob);
+        }
+    }
+
+    /**
+     * Remove a path from the store
+     *
+     * @param path full path of file
+     * @return The blob it held, still referenced, or null if none
+     */
+    public Blob unlink(String path) {
+        Blob blob;
+        synchronized (this) {
+            blob = live.remove(path);
+        }
+        if (blob != null)
+            manifest_file(path).delete();
+        return blob;
+    }
+
+    /**
+     * Keep a superseded blob for the readers of its version
+     *
+     * @param path full path of file
+     * @param version version number of the blob
+     * @param blob the blob, its references move to the snapshot
+     */
+    public synchronized void keep(String path, int version, Blob blob) {
+        Blob old = snapshots.put(path + '@' + version, blob);
+        if (old != null && old != blob)
+            drop(old);
+    }
+
+    /**
+     * Drop a kept blob once its readers are done
+     *
+     * @param path full path of file
+     * @param version version number of the blob
+     */
+    public synchronized void drop(String path, int version) {
+        Blob blob = snapshots.remove(path + '@' + version);
+        if (blob != null)
+            drop(blob);
+    }
+
+    /**
+     * Drop the references of a blob, now or when its last reader is done
+     *
+     * @param blob the blob
+     */
+    public synchronized void drop(Blob blob) {
+        blob.dropped = true;
+        if (blob.readers == 0)
+            release(blob);
+    }
+
+    /**
+     * Release the references of a blob and delete unreferenced chunks
+     *
+     * @param blob the blob
+     */
+    private synchronized void release(Blob blob) {
+        for (int i = 0; i < blob.chunks(); i++) {
+            String name = name(blob, i);
+            Integer count = refs.get(name);
+            if (count == null)
+                continue;
+            if (count > 1) {
+                refs.put(name, count - 1);
+            } else {
+                refs.remove(name);
+                chunk_file(name).delete();
+            }
+        }
+    }
+
+    /**
+     * Copy a chunk of a staged file into the store
+     *
+     * @param channel channel of the staged file
+     * @param blob the blob being stored
+     * @param i chunk number
+     */
+    private void write_chunk(FileChannel channel, Blob blob, int i)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(blob.length(i));
+        while (buffer.hasRemaining() && channel.read(buffer,
+            blob.offsets[i] + buffer.position()) > 0);
+        buffer.flip();
+        File chunk = chunk_file(name(blob, i));
+        chunk.getParentFile().mkdirs();
+        // unique per writer, concurrent writers of a chunk store the same
+        File temp = new File(chunk.getPath() + '.'
+            + Thread.currentThread().getId() + TEMP);
+        try (FileChannel out = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            if (durable)
+                out.force(true);
+        }
+        Files.move(temp.toPath(), chunk.toPath(),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Load the manifests under a directory and count chunk references
+     *
+     * @param dir the directory
+     */
+    private void load(File dir) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                load(child);
+                continue;
+            }
+            if (child.getName().endsWith(TEMP)) {// a link that never ended
+                child.delete();
+                continue;
+            }
+            Blob blob = read_manifest(child);
+            live.put(root_path + child.getPath().substring(
+                path_dir.getPath().length()), blob);
+            for (int i = 0; i < blob.chunks(); i++)
+                refs.merge(name(blob, i), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Read a manifest
+     *
+     * @param manifest the manifest file
+     * @return The blob
+     */
+    private static Blob read_manifest(File manifest) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(manifest)))) {
+            long hash = in.readLong();
+            int count = in.readInt();
+            int[] lengths = new int[count];
+            byte[] hashes = new byte[count * ContentChunker.HASH_LEN];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = in.readInt();
+                in.readFully(hashes, i * ContentChunker.HASH_LEN,
+                    ContentChunker.HASH_LEN);
+            }
+            return new Blob(hashes, lengths, hash);
+        }
+    }
+
+    /**
+     * Delete the chunks no manifest references, left by a crash
+     */
+    private void sweep() {
+        File[] dirs = chunk_dir.listFiles();
+        if (dirs == null)
+            return;
+        for (File dir : dirs) {
+            File[] chunks = dir.listFiles();
+            if (chunks == null)
+                continue;
+            for (File chunk : chunks)
+                if (!refs.containsKey(chunk.getName()))
+                    chunk.delete();
+        }
+    }
+
+    /**
+     * Get the name of a chunk
+     *
+     * @param blob the blob holding the chunk
+     * @param i chunk number
+     * @return The hex hash of the chunk
+     */
+    private static String name(Blob blob, int i) {
+        return HexFormat.of().formatHex(blob.hashes,
+            i * ContentChunker.HASH_LEN, (i + 1) * ContentChunker.HASH_LEN);
+    }
+
+    /**
+     * Get the file of a chunk, chunks are spread over directories by the
+     * first byte of their hash
+     *
+     * @param name name of the chunk
+     * @return The chunk file
+     */
+    private File chunk_file(String name) {
+        return new File(chunk_dir, name.substring(0, 2) + '/' + name);
+    }
+
+    /**
+     * Get the manifest file of a path
+     *
+     * @param path full path of file
+     * @return The manifest file
+     */
+    private File manifest_file(String path) {
+        return new File(path_dir.getPath()
+            + path.substring(root_path.length()));
+    }
+
+    /**
+     * Force a directory to disk, so renames in it are durable
+     *
+     * @param dir the directory
+     */
+    private static void force_dir(File dir) throws IOException {
+        try (FileChannel channel =
+                FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec Class, the compression codecs of the transfer path, a packed
+ * chunk is one codec byte followed by the payload
+ */
+public class Codec {
+    // raw bytes
+    public static final int NONE = 0;
+    // the in-repo LZ codec
+    public static final int LZ = 1;
+    // Deflater at its fastest level
+    public static final int DEFLATE_FAST = 2;
+    // Deflater at its default level
+    public static final int DEFLATE = 3;
+    // Deflater at its best level
+    public static final int DEFLATE_BEST = 4;
+    // number of codecs
+    public static final int COUNT = 5;
+    // mask of every codec
+    public static final int ALL = (1 << COUNT) - 1;
+
+    /**
+     * Compress bytes
+     *
+     * @param codec the codec
+     * @param raw the raw bytes
+     * @return The compressed bytes
+     */
+    public static byte[] encode(int codec, byte[] raw) {
+        switch (codec) {
+            case LZ:
+                return LZCodec.compress(raw, 0, raw.length);
+            case DEFLATE_FAST:
+                return deflate(raw, Deflater.BEST_SPEED);
+            case DEFLATE:
+                return deflate(raw, Deflater.DEFAULT_COMPRESSION);
+            case DEFLATE_BEST:
+                return deflate(raw, Deflater.BEST_COMPRESSION);
+            default:
+                return raw;
+        }
+    }
+
+    /**
+     * Decompress bytes
+     *
+     * @param codec the codec
+     * @param buf the compressed bytes
+     * @param off offset of the compressed bytes
+     * @param len length of the compressed bytes
+     * @param raw_len length of the raw bytes
+     * @return The raw bytes
+     */
+    public static byte[] decode(int codec, byte[] buf, int off, int len,
+            int raw_len) throws IOException {
+        switch (codec) {
+            case NONE:
+                if (len != raw_len)
+                    throw new IOException("Raw chunk of wrong length");
+                return off == 0 && len == buf.length
+                    ? buf : Arrays.copyOfRange(buf, off, off + len);
+            case LZ:
+                return LZCodec.decompress(buf, off, len, raw_len);
+            case DEFLATE_FAST:
+            case DEFLATE:
+            case DEFLATE_BEST:
+                return inflate(buf, off, len, raw_len);
+            default:
+                throw new IOException("Unknown codec " + codec);
+        }
+    }
+
+    /**
+     * Compress bytes into a packed chunk, raw if they do not shrink
+     *
+     * @param codec the codec
+     * @param raw the raw bytes
+     * @return The packed chunk
+     */
+    public static byte[] pack(int codec, byte[] raw) {
+        byte[] encoded = encode(codec, raw);
+        if (codec == NONE || encoded.length >= raw.length) {
+            codec = NONE;
+            encoded = raw;
+        }
+        byte[] packed = new byte[encoded.length + 1];
+        packed[0] = (byte)codec;
+        System.arraycopy(encoded, 0, packed, 1, encoded.length);
+        return packed;
+    }
+
+    /**
+     * Decompress a packed chunk
+     *
+     * @param packed the packed chunk
+     * @param raw_len length of the raw bytes
+     * @return The raw bytes
+     */
+    public static byte[] unpack(byte[] packed, int raw_len)
+        throws IOException {
+        return decode(packed[0], packed, 1, packed.length - 1, raw_len);
+    }
+
+    /**
+     * Compress bytes with Deflater
+     *
+     * @param raw the raw bytes
+     * @param level the Deflater level
+     * @return The compressed bytes
+     */
+    private static byte[] deflate(byte[] raw, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] out = new byte[raw.length + raw.length / 1000 + 64];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return Arrays.copyOf(out, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress bytes with Inflater
+     *
+     * @param buf the compressed bytes
+     * @param off offset of the compressed bytes
+     * @param len length of the compressed bytes
+     * @param raw_len length of the raw bytes
+     * @return The raw bytes
+     */
+    private static byte[] inflate(byte[] buf, int off, int len, int raw_len)
+        throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(buf, off, len);
+            byte[] raw = new byte[raw_len];
+            int n = 0;
+            while (n < raw_len && !inflater.finished()) {
+                int got = inflater.inflate(raw, n, raw_len - n);
+                if (got == 0 && (inflater.needsInput()
+                    || inflater.needsDictionary()))
+                    break;
+                n += got;
+            }
+            if (n != raw_len)
+                throw new IOException("Corrupt deflate stream");
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate stream", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
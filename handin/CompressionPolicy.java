@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * CompressionPolicy Class, picks the codec of each proxy transfer from the
+ * sampled ratio of the file and the measured speeds of the link and the
+ * codecs, compression is skipped for files that do not compress and when
+ * the link is faster than the codec
+ */
+public class CompressionPolicy {
+    // weight of a new sample in the moving averages
+    private static final double ALPHA = 0.2;
+    // ratio assumed for a codec before it was sampled
+    private static final double UNKNOWN_RATIO = 0.5;
+    // one transfer in this many tries another codec to refresh samples
+    private static final int EXPLORE = 32;
+    // number of files whose ratios are remembered
+    private static final int MAX_FILES = 1024;
+    // mask of the codecs both sides support
+    private int allowed;
+    // moving average of the link speed in bytes per nanosecond
+    private double link_speed;
+    // moving average of encode speed per codec in bytes per nanosecond
+    private double[] encode_speed;
+    // moving average of decode speed per codec in bytes per nanosecond
+    private double[] decode_speed;
+    // moving average of ratio per codec over all files
+    private double[] ratio;
+    // relative path and sampled ratios mapping, least recent first
+    private Map<String, double[]> files;
+    // number of codec choices made
+    private long choices;
+
+    /**
+     * Constructor
+     *
+     * @param allowed mask of the codecs both sides support
+     */
+    public CompressionPolicy(int allowed) {
+        this.allowed = allowed | (1 << Codec.NONE);
+        encode_speed = new double[Codec.COUNT];
+        decode_speed = new double[Codec.COUNT];
+        ratio = new double[Codec.COUNT];
+        files = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, double[]> eldest) {
+                return size() > MAX_FILES;
+            }
+        };
+    }
+
+    /**
+     * Fetch a chunk of a download session
+     *
+     * @param server the server interface
+     * @param relative_path relative path of file on server
+     * @param session download session id
+     * @param len length of the chunk
+     * @param off file position of the chunk
+     * @return The raw chunk, or null if the session is gone, a chunk 
+     * shorter than asked fails
+     */
+    public byte[] fetch(ServerInterface server, String relative_path,
+            long session, int len, long off) throws IOException {
+        int codec = choose(relative_path);
+        long start = System.nanoTime();
+        byte[] reply = server.get_chunk(session, len, off, codec);
+        long wire_time = System.nanoTime() - start;
+        if (reply == null)
+            return null;
+        if (codec == Codec.NONE) {
+            if (reply.length != len)// the version ended early
+                throw new IOException("Short chunk");
+            record_link(len, wire_time);
+            return reply;
+        }
+        start = System.nanoTime();
+        byte[] raw = Codec.unpack(reply, len);
+        if (raw.length != len)
+            throw new IOException("Short chunk");
+        long decode_time = System.nanoTime() - start;
+        synchronized (this) {
+            record_ratio(relative_path, codec, reply.length - 1, len);
+            if (reply[0] != Codec.NONE) {
+                decode_speed[codec] =
+                    average(decode_speed[codec], len, decode_time);
+                // what the link does not explain was spent encoding
+                long encode_time = wire_time - estimate(reply.length);
+                if (encode_time > 0)
+                    encode_speed[codec] =
+                        average(encode_speed[codec], len, encode_time);
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Stage a chunk of an upload session
+     *
+     * @param server the server interface
+     * @param relative_path relative path of file on server
+     * @param session upload session id
+     * @param raw the raw chunk
+     * @param off file position of the chunk
+     * @return True if staged, false if the session is gone
+     */
+    public boolean put(ServerInterface server, String relative_path,
+            long session, byte[] raw, long off) throws IOException {
+        int codec = choose(relative_path);
+        byte[] payload = raw;
+        if (codec != Codec.NONE) {
+            long start = System.nanoTime();
+            byte[] encoded = Codec.encode(codec, raw);
+            long encode_time = System.nanoTime() - start;
+            synchronized (this) {
+                record_ratio(relative_path, codec, encoded.length,
+                    raw.length);
+                encode_speed[codec] =
+                    average(encode_speed[codec], raw.length, encode_time);
+            }
+            if (encoded.length < raw.length)
+                payload = encoded;
+            else // did not shrink, send it raw
+                codec = Codec.NONE;
+        }
+        long start = System.nanoTime();
+        boolean staged = server.put_chunk(session, payload, off, codec,
+            raw.length);
+        long wire_time = System.nanoTime() - start;
+        if (codec == Codec.NONE) {
+            record_link(raw.length, wire_time);
+        } else {
+            synchronized (this) {
+                // what the link does not explain was spent decoding
+                long decode_time = wire_time - estimate(payload.length);
+                if (decode_time > 0)
+                    decode_speed[codec] =
+                        average(decode_speed[codec], raw.length,
+                            decode_time);
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Pick the codec with the lowest expected time per raw byte
+     *
+     * @param relative_path relative path of file on server
+     * @return The codec
+     */
+    synchronized int choose(String relative_path) {
+        if (allowed == (1 << Codec.NONE))
+            return Codec.NONE;
+        if (++choices % EXPLORE == 0) {// refresh a random codec
+            int codec;
+            do {
+                codec = ThreadLocalRandom.current().nextInt(Codec.COUNT);
+            } while ((allowed & (1 << codec)) == 0);
+            return codec;
+        }
+        double[] sampled = files.get(relative_path);
+        // an unmeasured link is assumed slow so compression gets sampled
+        double link = link_speed > 0 ? link_speed : 1e-3;
+        int best = Codec.NONE;
+        double best_cost = 1 / link;
+        for (int codec = Codec.NONE + 1; codec < Codec.COUNT; codec++) {
+            if ((allowed & (1 << codec)) == 0)
+                continue;
+            double r = sampled != null && sampled[codec] > 0
+                ? sampled[codec]
+                : ratio[codec] > 0 ? ratio[codec] : UNKNOWN_RATIO;
+            double cost = r / link;
+            if (encode_speed[codec] > 0)
+                cost += 1 / encode_speed[codec];
+            if (decode_speed[codec] > 0)
+                cost += 1 / decode_speed[codec];
+            if (cost < best_cost) {
+                best = codec;
+                best_cost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Record the ratio a codec reached on a chunk of a file
+     *
+     * @param relative_path relative path of file on server
+     * @param codec the codec
+     * @param packed length of the compressed chunk
+     * @param raw length of the raw chunk
+     */
+    private void record_ratio(String relative_path, int codec, int packed,
+            int raw) {
+        if (raw == 0)
+            return;
+        double r = Math.min(1.0, (double)packed / raw);
+        double[] sampled = files.computeIfAbsent(relative_path,
+            key -> new double[Codec.COUNT]);
+        sampled[codec] = sampled[codec] > 0
+            ? sampled[codec] + ALPHA * (r - sampled[codec]) : r;
+        ratio[codec] = ratio[codec] > 0
+            ? ratio[codec] + ALPHA * (r - ratio[codec]) : r;
+    }
+
+    /**
+     * Record the time a raw transfer took on the link
+     *
+     * @param bytes bytes transferred
+     * @param time nanoseconds taken
+     */
+    private synchronized void record_link(long bytes, long time) {
+        link_speed = average(link_speed, bytes, time);
+    }
+
+    /**
+     * Estimate the link time of a transfer
+     *
+     * @param bytes bytes to transfer
+     * @return The expected nanoseconds
+     */
+    private long estimate(long bytes) {
+        return link_speed > 0 ? (long)(bytes / link_speed) : 0;
+    }
+
+    /**
+     * Fold a speed sample into a moving average
+     *
+     * @param average the moving average, 0 if there is no sample yet
+     * @param bytes bytes processed
+     * @param time nanoseconds taken
+     * @return The new moving average
+     */
+    private static double average(double average, long bytes, long time) {
+        if (time <= 0 || bytes <= 0)
+            return average;
+        double speed = (double)bytes / time;
+        return average > 0 ? average + ALPHA * (speed - average) : speed;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * ContentChunker Class, cuts a byte stream into chunks at positions chosen
+ * by a rolling gear hash of the content, so an insertion only changes the
+ * chunks around it, and hashes each chunk
+ */
+public class ContentChunker {
+    // smallest upload chunk, except the last one
+    static final int MIN_SIZE = 1 << 11;
+    // upload chunk size the cut masks aim at
+    static final int AVG_SIZE = 1 << 13;
+    // largest upload chunk
+    static final int MAX_SIZE = 1 << 16;
+    // length of one chunk hash
+    static final int HASH_LEN = 32;
+    // bytes the gear hash depends on, older bytes are shifted out
+    private static final int WINDOW = 64;
+    // random value of each byte, the same on every host
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5ca1ab1e);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    // smallest chunk, except the last one
+    private final int min_size;
+    // chunk size the cut masks aim at
+    private final int avg_size;
+    // largest chunk
+    private final int max_size;
+    // harder cut condition below the average size
+    private final long mask_small;
+    // easier cut condition above the average size
+    private final long mask_large;
+    // hash of the current chunk
+    private final MessageDigest digest;
+    // rolling hash of the last bytes
+    private long gear;
+    // length of the current chunk
+    private int length;
+    // lengths of the finished chunks
+    private int[] lengths = new int[64];
+    // number of finished chunks
+    private int count;
+    // hashes of the finished chunks
+    private ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+
+    /**
+     * Constructor, with the chunk sizes of uploads
+     */
+    public ContentChunker() {
+        this(MIN_SIZE, AVG_SIZE, MAX_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param min_size smallest chunk
+     * @param avg_size chunk size aimed at, a power of two
+     * @param max_size largest chunk
+     */
+    public ContentChunker(int min_size, int avg_size, int max_size) {
+        this.min_size = min_size;
+        this.avg_size = avg_size;
+        this.max_size = max_size;
+        int bits = Integer.numberOfTrailingZeros(avg_size);
+        mask_small = -1L << (64 - (bits + 2));
+        mask_large = -1L << (64 - (bits - 2));
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Chunk the next bytes of the stream
+     *
+     * @param buf byte array of data
+     * @param off offset of the data
+     * @param len length of the data
+     */
+    public void update(byte[] buf, int off, int len) {
+        int end = off + len;
+        int start = off;
+        int i = off;
+        while (i < end) {
+            // no cut before the minimum size, and the gear hash of the
+            // first bytes is shifted out before it is tested
+            int skip = Math.min(end - i, min_size - WINDOW - length);
+            if (skip > 0) {
+                i += skip;
+                length += skip;
+                continue;
+            }
+            gear = (gear << 1) + GEAR[buf[i++] & 0xff];
+            length++;
+            if (length < min_size)
+                continue;
+            long mask = length < avg_size ? mask_small : mask_large;
+            if ((gear & mask) == 0 || length == max_size) {
+                digest.update(buf, start, i - start);
+                cut();
+                start = i;
+            }
+        }
+        digest.update(buf, start, end - start);
+    }
+
+    /**
+     * End the stream, the bytes since the last cut are the last chunk
+     */
+    public void finish() {
+        if (length > 0)
+            cut();
+    }
+
+    /**
+     * Get the lengths of the chunks
+     *
+     * @return The chunk lengths in stream order
+     */
+    public int[] lengths() {
+        return Arrays.copyOf(lengths, count);
+    }
+
+    /**
+     * Get the hashes of the chunks
+     *
+     * @return The chunk hashes, HASH_LEN bytes per chunk
+     */
+    public byte[] hashes() {
+        return hashes.toByteArray();
+    }
+
+    /**
+     * Chunk a whole file and end the stream
+     *
+     * @param reader reads the file
+     */
+    public void update(ContentReader reader) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        long pos = 0;
+        int n;
+        while ((n = reader.read(buffer, pos)) > 0) {
+            update(buffer.array(), 0, n);
+            pos += n;
+            buffer.clear();
+        }
+        finish();
+    }
+
+    /**
+     * Chunk a whole file with the chunk sizes of uploads
+     *
+     * @param reader reads the file
+     * @return The chunker holding the chunks of the file
+     */
+    public static ContentChunker of(ContentReader reader) throws IOException {
+        ContentChunker chunker = new ContentChunker();
+        chunker.update(reader);
+        return chunker;
+    }
+
+    /**
+     * Finish the current chunk
+     */
+    private void cut() {
+        if (count == lengths.length)
+            lengths = Arrays.copyOf(lengths, count * 2);
+        lengths[count++] = length;
+        hashes.writeBytes(digest.digest());
+        length = 0;
+        gear = 0;
+    }
+}
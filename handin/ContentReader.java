@@ -0,0 +1,11 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ContentReader interface, positional reads of one version of a file
+ */
+public interface ContentReader {
+
+    int read(ByteBuffer dst, long pos) throws IOException;
+
+}
@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileStore Class, stores every cached version as its own file under the
+ * cache directory
+ */
+public class FileStore implements CacheStore {
+    // async deleter of evicted files, null to delete inline
+    private Trash trash;
+
+    /**
+     * Constructor
+     *
+     * @param trash async deleter of evicted files, or null
+     */
+    public FileStore(Trash trash) {
+        this.trash = trash;
+    }
+
+    /**
+     * Create a new cached file
+     *
+     * @param path the path of file
+     * @param size the size of file
+     * @return A writer for the file content
+     */
+    @Override
+    public Writer create(String path, long size) throws IOException {
+        File file = new File(path);
+        make_parent(file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        return new FileWriter(file, randomAccessFile);
+    }
+
+    /**
+     * Move a local file into the cache
+     *
+     * @param path the path of file
+     * @param file the local file to take
+     */
+    @Override
+    public void adopt(String path, File file) throws IOException {
+        File target = new File(path);
+        make_parent(target);
+        if (!file.renameTo(target))
+            throw new IOException("Cannot rename " + file + " to " + path);
+    }
+
+    /**
+     * Map a cached file read-only
+     *
+     * @param path the path of file
+     * @return A read-only view of the file, or null if it is too large
+     */
+    @Override
+    public ByteBuffer map(String path) throws IOException {
+        // the mapping stays valid after the channel is closed
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return null;
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Get the file holding a cached version
+     *
+     * @param path the path of file
+     * @return The file
+     */
+    @Override
+    public File file(String path) {
+        return new File(path);
+    }
+
+    /**
+     * Delete a cached file
+     *
+     * @param path the path of file
+     */
+    @Override
+    public void delete(String path) {
+        if (trash != null)
+            trash.discard(new File(path));
+        else
+            new File(path).delete();
+    }
+
+    /**
+     * Create parent directory if it does not exist
+     *
+     * @param file the file to create
+     */
+    private static void make_parent(File file) {
+        if (file.getParentFile() != null && !file.getParentFile().exists())
+            file.getParentFile().mkdirs();
+    }
+
+    /**
+     * FileWriter class, writes a cached file sequentially
+     */
+    private static class FileWriter implements Writer {
+        // the file written
+        File file;
+        // the open file
+        RandomAccessFile randomAccessFile;
+        // whether the file was committed
+        boolean committed;
+
+        /**
+         * Constructor
+         *
+         * @param file the file written
+         * @param randomAccessFile the open file
+         */
+        FileWriter(File file, RandomAccessFile randomAccessFile) {
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return randomAccessFile.getChannel().write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return randomAccessFile.getChannel().isOpen();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            committed = true;
+            randomAccessFile.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            randomAccessFile.close();
+            if (!committed)
+                file.delete();
+        }
+    }
+}
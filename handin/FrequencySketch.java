@@ -0,0 +1,87 @@
+/**
+ * FrequencySketch Class, a count-min sketch of recent opens used to decide
+ * whether a missed file is worth admitting to the long-term cache
+ */
+public class FrequencySketch {
+    // number of hash rows
+    private static final int DEPTH = 4;
+    // largest value a counter can hold
+    private static final int MAX_COUNT = 15;
+    // seeds for the row hash functions
+    private static final int[] SEEDS =
+        {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    // counters of each row
+    private int[][] table;
+    // mask for the row index
+    private int mask;
+    // increments since the last aging
+    private int additions;
+    // increments after which all counters are halved
+    private int sample_size;
+
+    /**
+     * Constructor
+     *
+     * @param width number of counters per row, rounded up to a power of two
+     */
+    public FrequencySketch(int width) {
+        int w = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        table = new int[DEPTH][w];
+        mask = w - 1;
+        additions = 0;
+        sample_size = 10 * w;
+    }
+
+    /**
+     * Record one access of the key
+     *
+     * @param key the key accessed
+     */
+    public void increment(String key) {
+        int hash = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(hash, i);
+            if (table[i][index] < MAX_COUNT)
+                table[i][index]++;
+        }
+        if (++additions >= sample_size)
+            age();
+    }
+
+    /**
+     * Estimate how often the key has been accessed recently
+     *
+     * @param key the key to look up
+     * @return The estimated access count
+     */
+    public int frequency(String key) {
+        int hash = key.hashCode();
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, table[i][index(hash, i)]);
+        return min;
+    }
+
+    /**
+     * Halve all counters so that old popularity fades out
+     */
+    private void age() {
+        for (int[] row : table)
+            for (int i = 0; i < row.length; i++)
+                row[i] >>>= 1;
+        additions = 0;
+    }
+
+    /**
+     * Get the counter index of a hash in a row
+     *
+     * @param hash hash code of the key
+     * @param row the row number
+     * @return The counter index
+     */
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x45D9F3B;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GroupCommit Class, makes final commits durable in batches, one thread
+ * collects the commits of concurrent uploads, forces each staged file and
+ * each touched directory once per batch and acknowledges all waiters
+ */
+public class GroupCommit {
+    // commits waiting for the next batch
+    private LinkedBlockingQueue<Request> queue;
+    // milliseconds a batch waits for more commits after its first one
+    private long delay;
+    // largest number of commits in one batch
+    private int batch_size;
+    // publishes a durable staged file, returns its version
+    private Publisher publisher;
+    // forces what the publishes of a batch logged
+    private Runnable sync;
+
+    /**
+     * Publisher interface, makes a staged file the live version
+     */
+    public interface Publisher {
+        int publish(String path, File stage, long hash) throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param delay milliseconds a batch waits for more commits
+     * @param batch_size largest number of commits in one batch
+     * @param publisher publishes a durable staged file
+     * @param sync forces what the publishes of a batch logged
+     */
+    public GroupCommit(long delay, int batch_size, Publisher publisher,
+            Runnable sync) {
+        this.delay = delay;
+        this.batch_size = Math.max(1, batch_size);
+        this.publisher = publisher;
+        this.sync = sync;
+        queue = new LinkedBlockingQueue<>();
+        Thread committer = new Thread(this::commit_loop, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Request class, one final commit
+     */
+    private static class Request {
+        // full path of file
+        String path;
+        // the staged content
+        File stage;
+        // content hash of the staged file
+        long hash;
+        // completed with the published version
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+    }
+
+    /**
+     * Commit a staged file and wait until it is durable
+     *
+     * @param path full path of file
+     * @param stage the staged content
+     * @param hash content hash of the staged file
+     * @return The published version number, or -1 if failed
+     */
+    public int commit(String path, File stage, long hash) {
+        Request request = new Request();
+        request.path = path;
+        request.stage = stage;
+        request.hash = hash;
+        queue.offer(request);
+        try {
+            return request.done.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Collect and commit batches, forever
+     */
+    private void commit_loop() {
+        List<Request> batch = new ArrayList<>(batch_size);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                // give concurrent commits a chance to join the batch
+                long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(delay);
+                while (batch.size() < batch_size) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = queue.poll(Math.max(0, wait),
+                        TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            commit_batch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Force the staged files, publish them in arrival order, force the
+     * touched directories and acknowledge the waiters
+     *
+     * @param batch the commits of this batch
+     */
+    private void commit_batch(List<Request> batch) {
+        Set<File> forced = new LinkedHashSet<>();
+        Set<File> dirs = new LinkedHashSet<>();
+        int[] versions = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            Request request = batch.get(i);
+            try {
+                // the content is durable before the rename can be
+                if (forced.add(request.stage))
+                    force(request.stage);
+                versions[i] = publisher.publish(request.path, request.stage,
+                    request.hash);
+                dirs.add(new File(request.path).getParentFile());
+            } catch (IOException e) {
+                e.printStackTrace();
+                versions[i] = -1;
+            }
+        }
+        for (File dir : dirs) {
+            try {
+                force(dir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        sync.run();
+        for (int i = 0; i < batch.size(); i++)
+            batch.get(i).done.complete(versions[i]);
+    }
+
+    /**
+     * Force a file or directory to disk
+     *
+     * @param file the file or directory
+     */
+    private static void force(File file) throws IOException {
+        try (FileChannel channel =
+                FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HashRing Class, maps relative paths to shards by consistent hashing,
+ * each shard owns many virtual nodes on the ring so paths spread evenly,
+ * and adding a shard only moves the paths its nodes take over
+ */
+public class HashRing {
+    // default number of virtual nodes of each shard
+    static final int VNODES = 128;
+    // position on the ring and shard index mapping
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    // addresses of the shards, the nodes are placed by address
+    private final String[] shards;
+
+    /**
+     * Constructor
+     *
+     * @param shards addresses of the shards, as host:port
+     * @param vnodes number of virtual nodes of each shard
+     */
+    public HashRing(String[] shards, int vnodes) {
+        this.shards = shards.clone();
+        for (int i = 0; i < shards.length; i++)
+            for (int v = 0; v < Math.max(1, vnodes); v++)
+                ring.put(hash(shards[i] + '#' + v), i);
+    }
+
+    /**
+     * Get the shard of a path
+     *
+     * @param path relative path of file
+     * @return The index of the shard
+     */
+    public int shard(String path) {
+        Map.Entry<Long, Integer> node = ring.ceilingEntry(hash(key(path)));
+        return node != null ? node.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Get the number of shards
+     *
+     * @return The number of shards
+     */
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * Get the address of a shard
+     *
+     * @param shard index of the shard
+     * @return The address, as host:port
+     */
+    public String address(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * Get the key of a path, the same for every spelling of it
+     *
+     * @param path relative path of file
+     * @return The normalized path without leading slashes
+     */
+    static String key(String path) {
+        String key = Paths.get(path).normalize().toString();
+        int start = 0;
+        while (start < key.length() && key.charAt(start) == '/')
+            start++;
+        return key.substring(start);
+    }
+
+    /**
+     * Hash a string onto the ring
+     *
+     * @param value the string
+     * @return The first eight bytes of its SHA-256
+     */
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++)
+                hash = hash << 8 | (digest[i] & 0xff);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
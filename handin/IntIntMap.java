@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/**
+ * IntIntMap Class, an open-addressing hash map from non-negative int keys
+ * to int values, two arrays and no boxing
+ */
+public class IntIntMap {
+    // marks an empty slot
+    private static final int EMPTY = -1;
+    // keys by slot
+    private int[] keys;
+    // values by slot
+    private int[] values;
+    // number of keys
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param capacity expected number of keys
+     */
+    public IntIntMap(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(8, capacity * 2 - 1)) << 1;
+        keys = new int[slots];
+        values = new int[slots];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Get the value of a key
+     *
+     * @param key the key
+     * @param missing value returned if the key is absent
+     * @return The value of the key, or missing
+     */
+    public int get(int key, int missing) {
+        int slot = find(key);
+        return keys[slot] == EMPTY ? missing : values[slot];
+    }
+
+    /**
+     * Set the value of a key
+     *
+     * @param key the key, non-negative
+     * @param value the value
+     */
+    public void put(int key, int value) {
+        int slot = find(key);
+        if (keys[slot] == EMPTY) {
+            if ((size + 1) * 4 > keys.length * 3) {// keep the load below 3/4
+                grow();
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Remove a key
+     *
+     * @param key the key
+     * @return True if the key was present
+     */
+    public boolean remove(int key) {
+        int slot = find(key);
+        if (keys[slot] == EMPTY)
+            return false;
+        // shift the following probe run back over the hole
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Get the number of keys
+     *
+     * @return number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the slot holding a key, or the empty slot it would go to
+     *
+     * @param key the key
+     * @return The slot
+     */
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Double the number of slots
+     */
+    private void grow() {
+        int[] old_keys = keys;
+        int[] old_values = values;
+        keys = new int[old_keys.length * 2];
+        values = new int[old_keys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_keys[i] == EMPTY)
+                continue;
+            int slot = find(old_keys[i]);
+            keys[slot] = old_keys[i];
+            values[slot] = old_values[i];
+        }
+    }
+
+    /**
+     * Spread the bits of a key
+     *
+     * @param key the key
+     * @return The hash of the key
+     */
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZCodec Class, a fast byte-oriented LZ77 codec, each sequence is a token
+ * of literal and match lengths, the literals, and a 16-bit match offset,
+ * trading ratio for speed against Deflater
+ */
+public class LZCodec {
+    // shortest match worth encoding
+    private static final int MIN_MATCH = 4;
+    // bytes at the end always left as literals
+    private static final int LAST_LITERALS = 5;
+    // no match starts this close to the end
+    private static final int MATCH_LIMIT = 12;
+    // largest match offset
+    private static final int MAX_OFFSET = 65535;
+    // bits of the match finder hash table
+    private static final int HASH_BITS = 14;
+    // misses after which the match finder starts skipping ahead
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * Compress a range of bytes
+     *
+     * @param src source array
+     * @param off offset of the range
+     * @param len length of the range
+     * @return The compressed bytes
+     */
+    public static byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[len + len / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int end = off + len;
+        int limit = end - MATCH_LIMIT;
+        int anchor = off;
+        int ip = off;
+        int op = 0;
+        int misses = 0;
+        while (ip < limit) {
+            int sequence = read_int(src, ip);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET
+                || read_int(src, ref) != sequence) {
+                // incompressible input is scanned faster and faster
+                ip += 1 + (misses++ >> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+            int match = MIN_MATCH;
+            while (ip + match < end - LAST_LITERALS
+                && src[ref + match] == src[ip + match])
+                match++;
+            op = sequence(src, anchor, ip - anchor, ip - ref, match, dst, op);
+            ip += match;
+            anchor = ip;
+        }
+        // the rest is literals only
+        op = sequence(src, anchor, end - anchor, 0, 0, dst, op);
+        return Arrays.copyOf(dst, op);
+    }
+
+    /**
+     * Decompress bytes of a known original length
+     *
+     * @param src compressed bytes
+     * @param off offset of the compressed bytes
+     * @param len length of the compressed bytes
+     * @param raw_len length of the original bytes
+     * @return The original bytes
+     */
+    public static byte[] decompress(byte[] src, int off, int len,
+            int raw_len) throws IOException {
+        byte[] dst = new byte[raw_len];
+        int end = off + len;
+        int ip = off;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end)// the last sequence has no match
+                    break;
+                int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                int match = token & 15;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                if (offset == 0 || offset > op || op + match > raw_len)
+                    throw new IOException("Corrupt LZ stream");
+                if (offset >= match) {
+                    System.arraycopy(dst, op - offset, dst, op, match);
+                } else {// byte by byte, the match overlaps its own output
+                    for (int i = 0; i < match; i++)
+                        dst[op + i] = dst[op - offset + i];
+                }
+                op += match;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ stream", e);
+        }
+        if (op != raw_len)
+            throw new IOException("Corrupt LZ stream");
+        return dst;
+    }
+
+    /**
+     * Write one sequence
+     *
+     * @param src source array
+     * @param anchor offset of the literals
+     * @param literals number of literals
+     * @param offset match offset, 0 for the last sequence
+     * @param match match length, 0 for the last sequence
+     * @param dst destination array
+     * @param op position in the destination
+     * @return The new position in the destination
+     */
+    private static int sequence(byte[] src, int anchor, int literals,
+            int offset, int match, byte[] dst, int op) {
+        int extra = match > 0 ? match - MIN_MATCH : 0;
+        dst[op++] = (byte)((Math.min(literals, 15) << 4)
+            | Math.min(extra, 15));
+        if (literals >= 15)
+            op = length(literals - 15, dst, op);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        if (match == 0)
+            return op;
+        dst[op++] = (byte)offset;
+        dst[op++] = (byte)(offset >>> 8);
+        if (extra >= 15)
+            op = length(extra - 15, dst, op);
+        return op;
+    }
+
+    /**
+     * Write the rest of a length in bytes of 255
+     *
+     * @param rest the rest of the length
+     * @param dst destination array
+     * @param op position in the destination
+     * @return The new position in the destination
+     */
+    private static int length(int rest, byte[] dst, int op) {
+        while (rest >= 255) {
+            dst[op++] = (byte)255;
+            rest -= 255;
+        }
+        dst[op++] = (byte)rest;
+        return op;
+    }
+
+    /**
+     * Read four bytes as an int
+     *
+     * @param src source array
+     * @param i offset of the bytes
+     * @return The int
+     */
+    private static int read_int(byte[] src, int i) {
+        return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8
+            | (src[i + 2] & 0xff) << 16 | (src[i + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * LatencyTracker Class, keeps the latencies of recent requests and the
+ * latency at a percentile of them, a request slower than that is hedged
+ */
+public class LatencyTracker {
+    // samples kept, older ones are overwritten
+    private static final int SAMPLES = 256;
+    // samples between two recomputations of the percentile
+    private static final int REFRESH = 32;
+    // delay before hedging while there are too few samples, in nanoseconds
+    private static final long INITIAL = 50000000L;
+    // shortest delay before hedging, in nanoseconds
+    private static final long FLOOR = 1000000L;
+    // the percentile, between 0 and 1
+    private final double percentile;
+    // recent latencies in nanoseconds, in a ring
+    private final long[] samples = new long[SAMPLES];
+    // number of samples recorded
+    private long count;
+    // latency at the percentile
+    private long threshold = INITIAL;
+
+    /**
+     * Constructor
+     *
+     * @param percentile the percentile, between 0 and 100
+     */
+    public LatencyTracker(double percentile) {
+        this.percentile = Math.min(100, Math.max(0, percentile)) / 100;
+    }
+
+    /**
+     * Record the latency of a request
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samples[(int)(count++ % SAMPLES)] = nanos;
+        if (count >= REFRESH && count % REFRESH == 0) {
+            long[] sorted = Arrays.copyOf(samples, (int)Math.min(count,
+                SAMPLES));
+            Arrays.sort(sorted);
+            int rank = (int)Math.ceil(percentile * sorted.length) - 1;
+            threshold = Math.max(FLOOR,
+                sorted[Math.max(0, Math.min(sorted.length - 1, rank))]);
+        }
+    }
+
+    /**
+     * Get the latency at the percentile
+     *
+     * @return The latency in nanoseconds
+     */
+    public synchronized long threshold() {
+        return threshold;
+    }
+}
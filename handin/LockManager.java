@@ -0,0 +1,34 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * LockManager Class, reader/writer locks for server paths, paths are
+ * hashed onto a fixed set of lock stripes so lookups never touch a shared
+ * map and the lock state does not grow with the number of paths
+ */
+public class LockManager {
+    // the lock stripes, a power of two in number
+    private StampedLock[] stripes;
+
+    /**
+     * Constructor
+     *
+     * @param count number of stripes, rounded up to a power of two
+     */
+    public LockManager(int count) {
+        int n = Integer.highestOneBit(Math.max(1, count * 2 - 1));
+        stripes = new StampedLock[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new StampedLock();
+    }
+
+    /**
+     * Get the lock of a path, shared for reads and exclusive for commits
+     * and unlinks
+     *
+     * @param path full normalized path
+     * @return The lock of the stripe the path hashes to
+     */
+    public StampedLock of(String path) {
+        return stripes[IntIntMap.hash(path.hashCode()) & (stripes.length - 1)];
+    }
+}
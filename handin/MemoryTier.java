@@ -0,0 +1,227 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MemoryTier Class, keeps small hot cached versions in off-heap slabs in
+ * front of the on-disk cache
+ */
+public class MemoryTier {
+    // size of one slab allocated from the budget
+    static final int SLAB_SIZE = 1 << 20;
+    // size of the smallest slot
+    static final int MIN_SLOT = 256;
+    // largest file kept in memory
+    static final int MAX_FILE = 1 << 16;
+    // number of slot size classes, MIN_SLOT doubled up to MAX_FILE
+    private static final int CLASSES =
+        Integer.numberOfTrailingZeros(MAX_FILE / MIN_SLOT) + 1;
+    // byte budget of the tier
+    private long budget;
+    // bytes of slabs allocated so far
+    private long allocated;
+    // free slots of each size class
+    private List<ArrayDeque<ByteBuffer>> free_slots;
+    // read path and memory entry mapping, in LRU order
+    private LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Constructor
+     *
+     * @param budget byte budget of the tier
+     */
+    public MemoryTier(long budget) {
+        this.budget = budget;
+        allocated = 0;
+        free_slots = new ArrayList<>(CLASSES);
+        for (int i = 0; i < CLASSES; i++)
+            free_slots.add(new ArrayDeque<>());
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Entry class, one file held in a slot
+     */
+    private static class Entry {
+        // the slot holding the file content
+        ByteBuffer slot;
+        // size class of the slot
+        int size_class;
+        // size of the file
+        int size;
+        // number of fds reading the entry
+        int refs;
+        // whether the entry was removed while still in use
+        boolean removed;
+        // removed entry of the same path it replaced, freed once no fd 
+        // reads the path any more
+        Entry replaced;
+    }
+
+    /**
+     * Get a read view of a file held in memory and pin it
+     *
+     * @param path read path of file
+     * @return A read-only view of the file, or null if not in memory
+     */
+    public synchronized ByteBuffer acquire(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.removed)// a stale view, loaded again
+            return null;
+        entry.refs++;
+        return view(entry);
+    }
+
+    /**
+     * Load a cached file into memory and pin it
+     *
+     * @param path read path of file
+     * @param source view of the file on disk
+     * @return A read-only view of the file, or null if it does not fit
+     */
+    public synchronized ByteBuffer promote(String path, ByteBuffer source) {
+        if (source == null || source.remaining() > MAX_FILE)
+            return null;
+        int size = source.remaining();
+        int size_class = size_class(size);
+        ByteBuffer slot = allocate(size_class);
+        if (slot == null)
+            return null;
+        slot.clear();
+        slot.put(source.duplicate());
+        Entry entry = new Entry();
+        entry.slot = slot;
+        entry.size_class = size_class;
+        entry.size = size;
+        entry.refs = 1;
+        Entry old = entries.put(path, entry);
+        if (old != null && old.refs > 0) {
+            // releases do not tell the views apart, so the readers of 
+            // the old view are counted on the new entry
+            entry.refs += old.refs;
+            entry.replaced = old;
+        } else if (old != null) {
+            recycle(old);
+        }
+        return view(entry);
+    }
+
+    /**
+     * Unpin a file after its fd is closed
+     *
+     * @param path read path of file
+     */
+    public synchronized void release(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null)
+            return;
+        entry.refs--;
+        if (entry.refs > 0)
+            return;
+        if (entry.replaced != null) {// the old readers are done too
+            recycle(entry.replaced);
+            entry.replaced = null;
+        }
+        if (entry.removed)
+            free(path, entry);
+    }
+
+    /**
+     * Drop a file from memory, e.g. when its version is invalidated
+     *
+     * @param path read path of file
+     */
+    public synchronized void remove(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null)
+            return;
+        if (entry.refs <= 0)
+            free(path, entry);
+        else
+            entry.removed = true;
+    }
+
+    /**
+     * Get a free slot of a size class, demoting cold entries if needed
+     *
+     * @param size_class the size class
+     * @return A free slot, or null if the tier is full
+     */
+    private ByteBuffer allocate(int size_class) {
+        ArrayDeque<ByteBuffer> free = free_slots.get(size_class);
+        if (free.isEmpty() && allocated + SLAB_SIZE <= budget) {
+            // carve a new slab into slots of this class
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            int slot_size = MIN_SLOT << size_class;
+            for (int off = 0; off + slot_size <= SLAB_SIZE; off += slot_size) {
+                slab.limit(off + slot_size).position(off);
+                free.push(slab.slice());
+            }
+            allocated += SLAB_SIZE;
+        }
+        if (free.isEmpty()) {// demote the least recent unused entry
+            Iterator<Map.Entry<String, Entry>> it =
+                entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next().getValue();
+                if (entry.size_class == size_class && entry.refs <= 0) {
+                    it.remove();
+                    free.push(entry.slot);
+                    break;
+                }
+            }
+        }
+        return free.poll();
+    }
+
+    /**
+     * Return the slot of an entry to its free list
+     *
+     * @param path read path of file
+     * @param entry the entry to free
+     */
+    private void free(String path, Entry entry) {
+        entries.remove(path);
+        recycle(entry);
+    }
+
+    /**
+     * Return the slots of an entry and of the entries it replaced
+     *
+     * @param entry the entry to free
+     */
+    private void recycle(Entry entry) {
+        for (; entry != null; entry = entry.replaced)
+            free_slots.get(entry.size_class).push(entry.slot);
+    }
+
+    /**
+     * Get a read-only view of an entry limited to the file size
+     *
+     * @param entry the memory entry
+     * @return The read-only view
+     */
+    private ByteBuffer view(Entry entry) {
+        ByteBuffer view = entry.slot.asReadOnlyBuffer();
+        view.clear();
+        view.limit(entry.size);
+        return view;
+    }
+
+    /**
+     * Get the size class of a file size
+     *
+     * @param size the size of file
+     * @return The smallest size class that holds the file
+     */
+    private static int size_class(int size) {
+        int size_class = 0;
+        while ((MIN_SLOT << size_class) < size)
+            size_class++;
+        return size_class;
+    }
+}
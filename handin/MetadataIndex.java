@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * MetadataIndex Class, an in-memory index of the files under the server
+ * root, built by a parallel walk at startup, kept current by the server
+ * mutations and by a watch on changes made outside the server
+ */
+public class MetadataIndex {
+    // the root directory
+    private String root_path;
+    // name of the directory under the root that is not indexed
+    private String skip;
+    // full path and file metadata mapping
+    private Map<String, Meta> index;
+    // watches the indexed directories, null if not supported
+    private WatchService watcher;
+
+    /**
+     * Constructor, walks the whole tree before returning
+     *
+     * @param root_path the root directory
+     * @param skip name of the directory under the root that is not indexed
+     */
+    public MetadataIndex(String root_path, String skip) {
+        this.root_path = root_path;
+        this.skip = skip;
+        index = new ConcurrentHashMap<>();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        ForkJoinPool.commonPool().invoke(new Walk(new File(root_path)));
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch_loop, "metadata-watch");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Meta class, the metadata of one file or directory
+     */
+    public static class Meta {
+        // whether it is a directory
+        final boolean dir;
+        // size of the file
+        final long length;
+        // last modified time of the file in milliseconds
+        final long modified;
+        // content hash of the file, UNKNOWN until computed
+        final long hash;
+
+        Meta(boolean dir, long length, long modified, long hash) {
+            this.dir = dir;
+            this.length = length;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    // hash of a file whose content was not hashed yet
+    public static final long UNKNOWN = -1;
+
+    /**
+     * Get the metadata of a path
+     *
+     * @param path full normalized path
+     * @return The metadata, or null if the path does not exist
+     */
+    public Meta get(String path) {
+        return index.get(path);
+    }
+
+    /**
+     * Refresh a path after it was created or changed, new parent
+     * directories are indexed as well
+     *
+     * @param path full normalized path
+     */
+    public void update(String path) {
+        File file = new File(path);
+        if (!file.exists()) {
+            remove(path);
+            return;
+        }
+        if (file.isDirectory()) {
+            if (!index.containsKey(path))
+                ForkJoinPool.commonPool().invoke(new Walk(file));
+        } else {
+            long length = file.length();
+            long modified = file.lastModified();
+            Meta old = index.get(path);
+            // the hash stays valid while the file is not changed
+            long hash = old != null && !old.dir && old.length == length
+                && old.modified == modified ? old.hash : UNKNOWN;
+            index.put(path, new Meta(false, length, modified, hash));
+        }
+        File parent = file.getParentFile();
+        if (parent != null && parent.getPath().startsWith(root_path)
+            && !index.containsKey(parent.getPath()))
+            update(parent.getPath());
+    }
+
+    /**
+     * Refresh a file the server wrote, with the hash of its content
+     *
+     * @param path full normalized path
+     * @param hash content hash of the file
+     */
+    public void update(String path, long hash) {
+        update(path);
+        Meta meta = index.get(path);
+        if (meta != null && !meta.dir)
+            set_hash(path, meta, hash);
+    }
+
+    /**
+     * Remember the content hash of a file, unless it changed since its 
+     * metadata was read
+     *
+     * @param path full normalized path
+     * @param meta the metadata the hash was computed for
+     * @param hash content hash of the file
+     */
+    public void set_hash(String path, Meta meta, long hash) {
+        index.replace(path, meta, 
+            new Meta(false, meta.length, meta.modified, hash));
+    }
+
+    /**
+     * Drop a deleted path and everything under it
+     *
+     * @param path full normalized path
+     */
+    public void remove(String path) {
+        Meta meta = index.remove(path);
+        if (meta != null && meta.dir)
+            index.keySet().removeIf(key -> key.startsWith(path + '/'));
+    }
+
+    /**
+     * Index a directory and register it with the watch
+     *
+     * @param dir the directory
+     */
+    private void add_dir(File dir) {
+        index.put(dir.getPath(), 
+            new Meta(true, dir.length(), dir.lastModified(), UNKNOWN));
+        if (watcher == null)
+            return;
+        try {
+            dir.toPath().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Walk class, indexes a directory and forks a walk per subdirectory
+     */
+    private class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // the directory to walk
+        private File dir;
+
+        Walk(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            add_dir(dir);
+            File[] children = dir.listFiles();
+            if (children == null)
+                return;
+            List<Walk> walks = new ArrayList<>();
+            for (File child : children) {
+                if (dir.getPath().equals(root_path)
+                    && child.getName().equals(skip))
+                    continue;
+                if (child.isDirectory())
+                    walks.add(new Walk(child));
+                else
+                    index.put(child.getPath(), new Meta(false, 
+                        child.length(), child.lastModified(), UNKNOWN));
+            }
+            invokeAll(walks);
+        }
+    }
+
+    /**
+     * Apply changes made outside the server, forever
+     */
+    private void watch_loop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path)key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost, walk the directory again
+                    ForkJoinPool.commonPool().invoke(new Walk(dir.toFile()));
+                    continue;
+                }
+                Path child = dir.resolve((Path)event.context());
+                if (dir.toString().equals(root_path)
+                    && child.getFileName().toString().equals(skip))
+                    continue;
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                    remove(child.toString());
+                else
+                    update(child.toString());
+            }
+            if (!key.reset())// the directory is gone
+                remove(dir.toString());
+        }
+    }
+}
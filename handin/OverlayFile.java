@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * OverlayFile Class, a writer copy stored as an overlay of modified blocks
+ * on top of the shared cached read version, the modified blocks live at
+ * their own offsets in a sparse per-writer file charged to the cache, so
+ * the heap only holds which blocks are modified
+ */
+public class OverlayFile implements ProxyFile {
+    // size of one overlay block
+    static final int BLOCK_SIZE = 1 << 16;
+    // view of the read version the writer started from
+    private ByteBuffer base;
+    // the sparse file holding the modified blocks
+    private File file;
+    // channel of the sparse file
+    private FileChannel channel;
+    // numbers of the modified blocks
+    private BitSet blocks;
+    // charges bytes to the cache, false if it cannot make room
+    private LongPredicate reserve;
+    // returns charged bytes to the cache
+    private LongConsumer release;
+    // bytes charged to the cache so far
+    private long charged;
+    // size of the file as written
+    private long length;
+    // current file position
+    private long pos;
+
+    /**
+     * Constructor
+     *
+     * @param base view of the read version the writer starts from
+     * @param file the sparse file for the modified blocks
+     * @param reserve charges bytes to the cache
+     * @param release returns charged bytes to the cache
+     */
+    public OverlayFile(ByteBuffer base, File file, LongPredicate reserve,
+            LongConsumer release) throws IOException {
+        this.base = base;
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.blocks = new BitSet();
+        this.reserve = reserve;
+        this.release = release;
+        this.length = base.limit();
+        this.pos = 0;
+    }
+
+    /**
+     * Read from the current position, merging the overlay with the base
+     *
+     * @param buf byte array of data to read
+     * @return Return byte number read, or -1 at the end of file
+     */
+    @Override
+    public int read(byte[] buf) throws IOException {
+        if (pos >= length)
+            return buf.length > 0 ? -1 : 0;
+        int len = (int)Math.min(buf.length, length - pos);
+        int done = 0;
+        while (done < len) {
+            long index = pos / BLOCK_SIZE;
+            int off = (int)(pos % BLOCK_SIZE);
+            int n = Math.min(len - done, BLOCK_SIZE - off);
+            if (blocks.get((int)index)) {
+                read_overlay(pos, buf, done, n);
+            } else {// unmodified, copy from the base
+                copy_base(pos, buf, done, n);
+            }
+            done += n;
+            pos += n;
+        }
+        return done;
+    }
+
+    /**
+     * Write at the current position, copying touched blocks on first write
+     *
+     * @param buf byte array of data to write
+     */
+    @Override
+    public void write(byte[] buf) throws IOException {
+        int done = 0;
+        while (done < buf.length) {
+            long index = pos / BLOCK_SIZE;
+            int off = (int)(pos % BLOCK_SIZE);
+            int n = Math.min(buf.length - done, BLOCK_SIZE - off);
+            if (!blocks.get((int)index)) {
+                // past the budget the block is written all the same,
+                // like a spool outside the cache
+                if (reserve.test(BLOCK_SIZE))
+                    charged += BLOCK_SIZE;
+                long start = index * BLOCK_SIZE;
+                int kept = (int)Math.max(0,
+                    Math.min(BLOCK_SIZE, base.limit() - start));
+                if (kept > 0) {// the rest of the block stays a hole
+                    ByteBuffer src = base.duplicate();
+                    src.clear().position((int)start).limit((int)start + kept);
+                    write_fully(src, start);
+                }
+                blocks.set((int)index);
+            }
+            write_fully(ByteBuffer.wrap(buf, done, n), pos);
+            done += n;
+            pos += n;
+        }
+        length = Math.max(length, pos);
+    }
+
+    /**
+     * Move the current position
+     *
+     * @param pos new file position
+     */
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0)
+            throw new IOException("Negative seek offset");
+        this.pos = pos;
+    }
+
+    /**
+     * Get the current position
+     *
+     * @return current file position
+     */
+    @Override
+    public long getFilePointer() {
+        return pos;
+    }
+
+    /**
+     * Get the size of file as written
+     *
+     * @return size of the file
+     */
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Nothing is pending, the overlay is the writer state
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Drop the overlay, its file and its charge
+     */
+    @Override
+    public void close() {
+        blocks.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+        release.accept(charged);
+        charged = 0;
+    }
+
+    /**
+     * Stop charging the modified blocks to the cache
+     *
+     * @return Return the bytes charged so far, for the caller to return
+     */
+    public long uncharge() {
+        long bytes = charged;
+        charged = 0;
+        return bytes;
+    }
+
+    /**
+     * Get the ranges changed by the writer
+     *
+     * @return Sorted start and end pairs of the modified blocks
+     */
+    public long[] dirty_ranges() {
+        List<Long> ranges = new ArrayList<>();
+        for (int index = blocks.nextSetBit(0); index >= 0;
+                index = blocks.nextSetBit(index + 1)) {
+            long start = (long)index * BLOCK_SIZE;
+            long end = Math.min(start + BLOCK_SIZE, length);
+            if (start >= end)
+                continue;
+            int last = ranges.size() - 1;
+            if (last > 0 && ranges.get(last) == start)
+                ranges.set(last, end);// extend the previous range
+            else {
+                ranges.add(start);
+                ranges.add(end);
+            }
+        }
+        long[] result = new long[ranges.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ranges.get(i);
+        return result;
+    }
+
+    /**
+     * Write the merged file sequentially
+     *
+     * @param channel where the merged file is written
+     */
+    public void materialize(WritableByteChannel channel) throws IOException {
+        byte[] zeros = null;
+        byte[] block = null;
+        for (long start = 0; start < length; start += BLOCK_SIZE) {
+            int n = (int)Math.min(BLOCK_SIZE, length - start);
+            ByteBuffer src;
+            if (blocks.get((int)(start / BLOCK_SIZE))) {
+                if (block == null)
+                    block = new byte[BLOCK_SIZE];
+                read_overlay(start, block, 0, n);
+                src = ByteBuffer.wrap(block, 0, n);
+            } else if (start + n <= base.limit()) {// unmodified base block
+                src = base.duplicate();
+                src.clear().position((int)start).limit((int)start + n);
+            } else {// hole past the base, never written
+                if (zeros == null)
+                    zeros = new byte[BLOCK_SIZE];
+                copy_base(start, zeros, 0, n);
+                src = ByteBuffer.wrap(zeros, 0, n);
+            }
+            while (src.hasRemaining())
+                channel.write(src);
+        }
+    }
+
+    /**
+     * Read bytes of the modified blocks, holes read as zeros
+     *
+     * @param from file position to read from
+     * @param dst destination array
+     * @param off offset in the destination
+     * @param len number of bytes to read
+     */
+    private void read_overlay(long from, byte[] dst, int off, int len)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dst, off, len);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position() - off) < 0)
+                break;
+        }
+        // past the end of the sparse file
+        Arrays.fill(dst, buffer.position(), off + len, (byte)0);
+    }
+
+    /**
+     * Write bytes into the sparse file
+     *
+     * @param src the bytes to write
+     * @param at file position to write at
+     */
+    private void write_fully(ByteBuffer src, long at) throws IOException {
+        while (src.hasRemaining())
+            at += channel.write(src, at);
+    }
+
+    /**
+     * Copy bytes of the base, zero filling past its end
+     *
+     * @param from file position to copy from
+     * @param dst destination array
+     * @param off offset in the destination
+     * @param len number of bytes to copy
+     */
+    private void copy_base(long from, byte[] dst, int off, int len) {
+        int n = (int)Math.max(0, Math.min(len, base.limit() - from));
+        if (n > 0)
+            base.get((int)from, dst, off, n);
+        Arrays.fill(dst, off + n, off + len, (byte)0);
+    }
+}
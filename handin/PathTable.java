@@ -0,0 +1,176 @@
+import java.util.Arrays;
+
+/**
+ * PathTable Class, interns paths to compact int ids, ids of released
+ * paths are reused so the table stays proportional to the paths in use,
+ * callers synchronize access
+ */
+public class PathTable {
+    // interned paths by slot, open addressing
+    private String[] slots;
+    // ids by slot
+    private int[] slot_ids;
+    // paths by id
+    private String[] paths;
+    // released ids to reuse
+    private int[] free;
+    // number of released ids
+    private int free_count;
+    // number of ids ever handed out
+    private int next_id;
+    // number of interned paths
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param capacity expected number of paths
+     */
+    public PathTable(int capacity) {
+        int n = Integer.highestOneBit(Math.max(8, capacity * 2 - 1)) << 1;
+        slots = new String[n];
+        slot_ids = new int[n];
+        paths = new String[n / 2];
+        free = new int[16];
+    }
+
+    /**
+     * Get the id of a path, interning it if needed
+     *
+     * @param path the path
+     * @return The id of the path
+     */
+    public int intern(String path) {
+        int slot = find(path);
+        if (slots[slot] != null)
+            return slot_ids[slot];
+        if ((size + 1) * 4 > slots.length * 3) {// keep the load below 3/4
+            grow();
+            slot = find(path);
+        }
+        int id;
+        if (free_count > 0) {
+            id = free[--free_count];
+        } else {
+            id = next_id++;
+            if (id == paths.length)
+                paths = Arrays.copyOf(paths, paths.length * 2);
+        }
+        slots[slot] = path;
+        slot_ids[slot] = id;
+        paths[id] = path;
+        size++;
+        return id;
+    }
+
+    /**
+     * Get the id of a path without interning it
+     *
+     * @param path the path
+     * @return The id of the path, or -1 if it is not interned
+     */
+    public int id(String path) {
+        int slot = find(path);
+        return slots[slot] == null ? -1 : slot_ids[slot];
+    }
+
+    /**
+     * Get the path of an id
+     *
+     * @param id the id
+     * @return The path, or null if the id is not in use
+     */
+    public String path(int id) {
+        return id >= 0 && id < next_id ? paths[id] : null;
+    }
+
+    /**
+     * Release a path, its id may be handed to another path
+     *
+     * @param path the path
+     */
+    public void release(String path) {
+        int slot = find(path);
+        if (slots[slot] == null)
+            return;
+        int id = slot_ids[slot];
+        paths[id] = null;
+        if (free_count == free.length)
+            free = Arrays.copyOf(free, free.length * 2);
+        free[free_count++] = id;
+        // shift the following probe run back over the hole
+        int mask = slots.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots[next] != null) {
+            int home = hash(slots[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                slot_ids[hole] = slot_ids[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = null;
+        size--;
+    }
+
+    /**
+     * Get the bound of the ids handed out
+     *
+     * @return An id greater than every id in use
+     */
+    public int limit() {
+        return next_id;
+    }
+
+    /**
+     * Get the number of interned paths
+     *
+     * @return number of interned paths
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the slot holding a path, or the empty slot it would go to
+     *
+     * @param path the path
+     * @return The slot
+     */
+    private int find(String path) {
+        int mask = slots.length - 1;
+        int slot = hash(path) & mask;
+        while (slots[slot] != null && !slots[slot].equals(path))
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Double the number of slots
+     */
+    private void grow() {
+        String[] old_slots = slots;
+        int[] old_ids = slot_ids;
+        slots = new String[old_slots.length * 2];
+        slot_ids = new int[old_slots.length * 2];
+        for (int i = 0; i < old_slots.length; i++) {
+            if (old_slots[i] == null)
+                continue;
+            int slot = find(old_slots[i]);
+            slots[slot] = old_slots[i];
+            slot_ids[slot] = old_ids[i];
+        }
+    }
+
+    /**
+     * Spread the bits of a path hash
+     *
+     * @param path the path
+     * @return The hash of the path
+     */
+    private static int hash(String path) {
+        return IntIntMap.hash(path.hashCode());
+    }
+}
@@ -1,15 +1,20 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Proxy Class
  */
 class Proxy {
 	static String cache_dir;
+	// proxy metadata, beside the cache so no client path can reach it
+	static String meta_dir;
 	private static int cache_size;
 	static ServerInterface server;
 	static myCache cache;
@@ -20,6 +25,14 @@ class Proxy {
 	static Map<Integer, user_file> fd_map;
 	// file path and the file cache information map
 	static Map<String, local_file> file_map;
+	// write-back journal of pending commits, null if disabled
+	static WriteJournal journal;
+	// follower of the change log of the server, null if disabled
+	static ChangeFeed feed;
+	// codec choice of each transfer
+	static CompressionPolicy compression;
+	// smallest file whose unchanged chunks are left on the server
+	static final long DEDUP_MIN = ContentChunker.MAX_SIZE;
 
 	private static class FileHandler implements FileHandling {
 
@@ -69,6 +82,8 @@ class Proxy {
 		 * @return An array of file information
 		 */
 		private long[] get_info(String path) {
+			if (feed != null)
+				return feed_info(path);
 			try {
 				// retrieve the the file from server
 				return server.get_info(path);
@@ -78,6 +93,31 @@ class Proxy {
 			}
 		}
 
+		/**
+		 * Get file information, from the change feed if the file is 
+		 * cached and known to be current, otherwise from the server
+		 *
+		 * @param path the file path
+		 * @return An array of file information
+		 */
+		private long[] feed_info(String path) {
+			String relative_path = path_transfer(path, 0, 0)[2];
+			long[] info = feed.info(relative_path);
+			// a version no longer cached may be gone on server too
+			if (info != null && file_map.containsKey(cache_dir + '/' 
+					+ relative_path + "-v" + info[3]))
+				return info;
+			long sequence = feed.sequence();
+			try {
+				info = server.get_info(path);
+			} catch (RemoteException e){
+				e.printStackTrace();
+				return null;
+			}
+			feed.learn(relative_path, info, sequence);
+			return info;
+		}
+
 		/**
 		 * Open function
 		 *
@@ -98,7 +138,7 @@ class Proxy {
 			user_file user_file;
 			String option = "";
 			int fd;
-			RandomAccessFile randomAccessFile;
+			ProxyFile proxyFile;
 			// whether the file can be new
 			boolean check_new = false;
 			// whether the file must be new 
@@ -111,6 +151,8 @@ class Proxy {
 			long size = file_info[2];
 			// the latest version number
 			int version = (int)file_info[3];
+			// content hash of the latest version
+			long hash = file_info[4];
 
 			switch (o) {
 				case READ: // open for read access
@@ -151,8 +193,6 @@ class Proxy {
 				full_path = write_path + "";
 			String relative_path = path_trans[2];
 
-			File file = new File(full_path);
-
 			// handle errors
 			if (!path_valid(full_path)) 
 				return Errors.EPERM;
@@ -169,48 +209,186 @@ class Proxy {
 						return Errors.ENOENT;
 					}
 					try {
-						// create parent directory if it does not exist
-						if(file.getParentFile()!=null 
-							&& !file.getParentFile().exists()) {
-							new File(file.getParent()).mkdirs();
-						}
 						// create the corresponding file on server
 						server.create_file(relative_path);
 					} catch (IOException e) {
 						return Errors.EBUSY;
 					}
 				}
-				//prepare cache for the file
-				int open_cache = cache.open_cache(write_path ,
-						read_path,relative_path, read_only, version, size);
+				//prepare cache for the file, the read version comes back 
+				// pinned for this fd, overlay writers keep it as their base
+				int open_cache = cache.open_cache(read_path, relative_path, 
+						version, size, hash);
+				if (open_cache == myCache.STREAM) {
+					// too large for the cache, bypass it
+					user_file = stream_open(relative_path, read_only, 
+						version, size);
+					if (user_file == null)
+						return Errors.EBUSY;
+					user_file.version = version;
+					fd_map.putIfAbsent(fd, user_file);
+					return fd;
+				}
 				if (open_cache != 1) 
 					return open_cache;
 
-				try {
-					randomAccessFile = new RandomAccessFile(full_path, option);
-				} catch (FileNotFoundException e) {
-					return Errors.ENOENT;
+				// small hot files are read from the memory tier, other 
+				// read versions from a mapping shared by all readers
+				ByteBuffer view = null;
+				boolean in_memory = false;
+				if (read_only) {
+					view = cache.memory_acquire(read_path);
+					in_memory = view != null;
+				}
+				if (!in_memory)
+					view = cache.mapping_acquire(read_path);
+				boolean overlay = !read_only && view != null;
+				if (overlay) {
+					// writers keep modified blocks over the shared version
+					try {
+						proxyFile = cache.new_overlay(view);
+					} catch (IOException e) {
+						file_map.get(read_path).user_count--;
+						cache.mapping_release(read_path);
+						return Errors.EBUSY;
+					}
+					view = null;
+					full_path = read_path;
+				} else if (view != null) {
+					proxyFile = null;
+				} else {
+					if (!read_only && cache.copy_writer(write_path, read_path,
+							relative_path, version, size) == myCache.STREAM) {
+						file_map.get(read_path).user_count--;
+						user_file = stream_open(relative_path, false, 
+							version, size);
+						if (user_file == null)
+							return Errors.EBUSY;
+						user_file.version = version;
+						fd_map.putIfAbsent(fd, user_file);
+						return fd;
+					}
+					try {
+						proxyFile = new BufferedFile(
+							new RandomAccessFile(full_path, option));
+					} catch (FileNotFoundException e) {
+						file_map.get(read_path).user_count--;
+						return Errors.ENOENT;
+					}
+					if (!read_only) {// the full copy is pinned instead
+						file_map.get(read_path).user_count--;
+						file_map.get(write_path).user_count++;
+					}
 				}
 				// record the file infomration
 				user_file = new user_file(relative_path, full_path,
-									randomAccessFile, false, !read_only);
+									proxyFile, false, !read_only);
+				user_file.view = view;
+				user_file.in_memory = in_memory;
+				user_file.overlay = overlay;
+				user_file.version = version;
 			} else {
 				// record the directory
 				user_file = new user_file(relative_path, 
 											full_path,null,true,false);
 			}
 
-			// file usage count
-			if (read_only) {
-				file_map.get(read_path).user_count++;
-			} else {
-				file_map.get(write_path).user_count++;
-			}
 			// store the fd and file info mapping
 			fd_map.putIfAbsent(fd, user_file);
 			return fd;
 		}
 
+		/**
+		 * Open a file which does not fit in the cache in stream-through mode,
+		 * reads go to the server by range and writes are spooled to a 
+		 * temporary file outside the cache budget
+		 *
+		 * @param relative_path relative path of file
+		 * @param read_only whether the file is only for read access
+		 * @param version version number of file
+		 * @param size the size of file
+		 * @return The file information, or null if failed
+		 */
+		private user_file stream_open(String relative_path, 
+				boolean read_only, int version, long size) {
+			user_file user_file;
+			if (read_only) {
+				user_file = new user_file(relative_path, null, 
+											null, false, false);
+				user_file.stream = 
+					new StreamFile(server, relative_path, version, size);
+				return user_file;
+			}
+			File spool = null;
+			try {
+				spool = File.createTempFile("proxy-spool", null);
+				spool.deleteOnExit();
+				RandomAccessFile randomAccessFile = 
+					new RandomAccessFile(spool, "rw");
+				// the writer starts from the content on server
+				if (!cache.fetch_file(randomAccessFile.getChannel(), 
+						relative_path, version, size)) {
+					randomAccessFile.close();
+					spool.delete();
+					return null;
+				}
+				user_file = new user_file(relative_path, spool.getPath(),
+						new BufferedFile(randomAccessFile), false, true);
+				user_file.spool = true;
+				return user_file;
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (spool != null)
+					spool.delete();
+				return null;
+			}
+		}
+
+		/**
+		 * Upload the content of a written file to the server, through the 
+		 * write-back journal if it is enabled
+		 *
+		 * @param user_file the file information
+		 * @return The latest version number of file, or -1 if failed
+		 */
+		private int upload_file(user_file user_file) throws IOException {
+			// pending buffered writes must reach the file first
+			user_file.proxyFile.flush();
+			if (journal == null)
+				return upload(user_file.proxyFile, user_file.relative_path, 
+					new_txn(), 0, null);
+			// an overlay only journals what it changed on its base version
+			long[] ranges = user_file.overlay 
+				? ((OverlayFile)user_file.proxyFile).dirty_ranges() : null;
+			File source = user_file.full_path != null && !user_file.overlay
+				? new File(user_file.full_path) : null;
+			// the commit is durable before anything is sent
+			WriteJournal.Entry entry = journal.begin(user_file.relative_path,
+				new_txn(), user_file.version, user_file.proxyFile, source, 
+				ranges);
+			// the live file is still open, the copy is only for replay
+			int version = upload(user_file.proxyFile, 
+				user_file.relative_path, entry.txn, 0, entry);
+			if (version != -1)
+				journal.done(entry);
+			return version;
+		}
+
+		/**
+		 * Upload a written file and forget what the change feed knew of it
+		 *
+		 * @param user_file the file information
+		 * @return The latest version number of file, or -1 if failed
+		 */
+		private int commit_file(user_file user_file) throws IOException {
+			try {
+				return upload_file(user_file);
+			} finally {
+				if (feed != null)
+					feed.forget(user_file.relative_path);
+			}
+		}
+
 		/**
 		 * Close function
 		 *
@@ -229,39 +407,45 @@ class Proxy {
 				return 0;
 			}
 
-			if (user_file.write_flag) {// if it has been overwritten
+			if (user_file.stream != null) {// streamed read, nothing cached
+				fd_map.remove(fd);
 				try {
-					long size = user_file.randomAccessFile.length();
-					int version;
-					byte[] bytes;
-					int chunk_size = (int)1e6;
-
-					// write the file to the server
-					if (size <= chunk_size) { // if the file size fits
-						bytes = new byte[(int)size];
-						user_file.randomAccessFile.seek(0);
-						user_file.randomAccessFile.read(bytes);
-						// get the version number for this update
-						version = server.write_to_file(user_file.relative_path, 
-								bytes, 0, true);
-					} else { // if too large, divide the file into chunks
-						long off = 0;
-						bytes = new byte[chunk_size];
-						while (off < size - chunk_size) {
-							user_file.randomAccessFile.seek(off);
-							user_file.randomAccessFile.read(bytes);
-							server.write_to_file(user_file.relative_path, 
-							bytes, off, false);
-							off += chunk_size;
-						}
-						// last chunk to send
-						bytes = new byte[(int)(size - off)];
-						user_file.randomAccessFile.seek(off);
-						user_file.randomAccessFile.read(bytes);
-						// get the version number after all chunks done
-						version = server.write_to_file(user_file.relative_path, 
-								bytes, off, true);
+					user_file.stream.close();
+				} catch (RemoteException e) {
+					e.printStackTrace();
+				}
+				return 0;
+			}
+
+			if (user_file.spool) {// streamed write, upload and drop spool
+				File spool = new File(user_file.full_path);
+				try {
+					int version = commit_file(user_file);
+					user_file.proxyFile.close();
+					fd_map.remove(fd);
+					if (version == -1) {
+						return Errors.EPERM;
 					}
+					// invalidate all old versions in the cache
+					cache.delete_version(cache_dir + '/' 
+						+ user_file.relative_path + "-v" + version);
+				} catch (IOException e) {
+					e.printStackTrace();
+					return Errors.EBUSY;
+				} finally {
+					spool.delete();
+				}
+				return 0;
+			}
+
+			if (user_file.overlay) {// overlay writer, nothing copied at open
+				return close_overlay(fd, user_file);
+			}
+
+			if (user_file.write_flag) {// if it has been overwritten
+				try {
+					long size = user_file.proxyFile.length();
+					int version = commit_file(user_file);
 					// handle errors
 					if (version == -1) {
 						return Errors.EPERM;
@@ -277,17 +461,9 @@ class Proxy {
 
 					File file = new File(user_file.full_path);
 					// add the latest file to the cache
-					if (cache.evict_cache(size)) {
-						// record the file cache infomration
-						local_file new_file = new local_file(
-							user_file.relative_path, version, 0, size);
-						file_map.putIfAbsent(new_read_path, new_file);
-						myCache.Node node = 
-							new myCache.Node(size, new_read_path);
-						cache.cache_map.put(new_read_path, node);
-						cache.cache_add(node);
-						file.renameTo(new File(new_read_path));
-					} else {// cache size not enough for the file
+					if (!cache.install_version(file, new_read_path, 
+							user_file.relative_path, version, size)) {
+						// cache size not enough for the file
 						if (file.exists()) 
 							// delete the local file without caching it
 							file.delete();
@@ -305,8 +481,16 @@ class Proxy {
 			// file usage count
 			file_map.get(user_file.full_path).user_count--;
 
+			if (user_file.view != null) {// read from memory or a mapping
+				if (user_file.in_memory)
+					cache.memory_release(user_file.full_path);
+				else
+					cache.mapping_release(user_file.full_path);
+				fd_map.remove(fd);
+				return 0;
+			}
 			try {
-				user_file.randomAccessFile.close();
+				user_file.proxyFile.close();
 				fd_map.remove(fd);
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -316,6 +500,44 @@ class Proxy {
 			return 0;
 		}
 
+		/**
+		 * Close an overlay writer, upload the merged file and materialize 
+		 * it as the new cached read version
+		 *
+		 * @param fd file descriptor 
+		 * @param user_file the file information
+		 * @return 0 if succeeded, otherwise error number
+		 */
+		private int close_overlay(int fd, user_file user_file) {
+			OverlayFile overlay = (OverlayFile)user_file.proxyFile;
+			long size = overlay.length();
+			int version;
+			try {
+				version = commit_file(user_file);
+			} catch (IOException e) {
+				e.printStackTrace();
+				version = 0;
+			}
+			// unpin the base version, its view stays readable
+			file_map.get(user_file.full_path).user_count--;
+			cache.mapping_release(user_file.full_path);
+			fd_map.remove(fd);
+			// handle errors
+			if (version <= 0) {
+				overlay.close();
+				return version == -1 ? Errors.EPERM : Errors.EBUSY;
+			}
+			// invalidate all old versions and delete from cache
+			String new_read_path = 
+				cache_dir + '/' +  user_file.relative_path + "-v" + version;
+			cache.delete_version(new_read_path);
+			// the merged file becomes the new cached read version if it fits
+			cache.install_overlay(overlay, new_read_path, 
+				user_file.relative_path, version, size);
+			overlay.close();
+			return 0;
+		}
+
 		/**
 		 * Write function
 		 *
@@ -341,7 +563,7 @@ class Proxy {
 			}
 
 			try {
-				user_file.randomAccessFile.write(buf);
+				user_file.proxyFile.write(buf);
 				return buf.length;
 			} catch (IOException e) {
 				if (e.getMessage().equals("Bad file descriptor")) {
@@ -374,7 +596,19 @@ class Proxy {
 			}
 
 			try {
-				long len = (long) user_file.randomAccessFile.read(buf);
+				if (user_file.stream != null) 
+					return user_file.stream.read(buf);
+				if (user_file.view != null) {// positional copy, no syscall
+					ByteBuffer view = user_file.view;
+					if (user_file.position >= view.limit())
+						return 0;
+					int len = (int)Math.min(buf.length, 
+						view.limit() - user_file.position);
+					view.get((int)user_file.position, buf, 0, len);
+					user_file.position += len;
+					return len;
+				}
+				long len = (long) user_file.proxyFile.read(buf);
 				if (len == -1) 
 					return 0;
 				return len;
@@ -402,23 +636,48 @@ class Proxy {
 			}
 			// the actual starting position depending on the lseek option
 			long option_pos = pos;
-			RandomAccessFile randomAccessFile = user_file.randomAccessFile;
+			if (user_file.stream != null) {// streamed read
+				StreamFile stream = user_file.stream;
+				if (o.equals(LseekOption.FROM_CURRENT)) 
+					option_pos = stream.getFilePointer() + pos;
+				else if (o.equals(LseekOption.FROM_END)) 
+					option_pos = stream.length() - pos;
+				try {
+					stream.seek(option_pos);
+				} catch (IOException e) {
+					return Errors.EINVAL;
+				}
+				return option_pos;
+			}
+			if (user_file.view != null) {// read from memory or a mapping
+				if (o.equals(LseekOption.FROM_CURRENT)) 
+					option_pos = user_file.position + pos;
+				else if (o.equals(LseekOption.FROM_END)) 
+					option_pos = user_file.view.limit() - pos;
+				if (option_pos < 0)
+					return Errors.EINVAL;
+				user_file.position = option_pos;
+				return option_pos;
+			}
+			ProxyFile proxyFile = user_file.proxyFile;
 
 			if (o.equals(LseekOption.FROM_CURRENT)) {
 				try {
-					option_pos = randomAccessFile.getFilePointer() + pos;
+					option_pos = proxyFile.getFilePointer() + pos;
 				} catch (IOException e) {
 					return Errors.EBUSY;
 				}
 			}else if (o.equals(LseekOption.FROM_END)) {
 				try {
-					option_pos = randomAccessFile.length() - pos;
+					option_pos = proxyFile.length() - pos;
 				} catch (IOException e) {
 					return Errors.EBUSY;
 				}
 			}
+			if (option_pos < 0)
+				return Errors.EINVAL;
 			try {
-				randomAccessFile.seek(option_pos);
+				proxyFile.seek(option_pos);
 			} catch (IOException e) {
 				return Errors.EBUSY;
 			}
@@ -452,15 +711,10 @@ class Proxy {
 				e.printStackTrace();
 			}
 			// delete the file from cache
-			File delete_file = new File(read_path);
-			if (delete_file.exists()) {
+			if (cache.cache_map.containsKey(read_path)) {
 				if (!file_map.containsKey(read_path) 
 					|| file_map.get(read_path).user_count <= 0) {
-					delete_file.delete();
-					myCache.Node node 
-						= cache.cache_map.get(read_path);
-					cache.cache_delete(node);
-					cache.cache_map.remove(read_path);
+					cache.cache_remove(read_path);
 				}
 			}
 
@@ -472,6 +726,8 @@ class Proxy {
 				e.printStackTrace();
 				return Errors.ENOENT;
 			}
+			if (feed != null)
+				feed.forget(path_transfer(path, 0, 0)[2]);
 			if (delete_flag) {
 				return 1;
 			}
@@ -488,6 +744,163 @@ class Proxy {
 	}
 
 
+	/**
+	 * Upload the content of a file to the server in chunks of one upload 
+	 * session, the server stages them and publishes the file atomically 
+	 * on commit
+	 *
+	 * @param file the file to upload
+	 * @param relative_path relative path of file on server
+	 * @param txn id of the upload session
+	 * @param off offset already uploaded
+	 * @param entry journal entry recording the progress, or null
+	 * @return The latest version number of file, or -1 if failed
+	 */
+	static int upload(ProxyFile file, String relative_path, long txn, 
+			long off, WriteJournal.Entry entry) throws IOException {
+		long size = file.length();
+		int chunk_size = (int)1e6;
+		// resume from what the server still has staged
+		long staged = server.begin_upload(relative_path, txn);
+		if (staged == -1)
+			return -1;
+		off = Math.min(off, staged);
+		try {
+			// ranges the server copied from its own version of the file
+			long[] reused = off == 0 ? reuse(file, relative_path, txn) 
+				: new long[0];
+			int next = 0;
+			while (off < size) {
+				while (next < reused.length && reused[next + 1] <= off)
+					next += 2;
+				if (next < reused.length && reused[next] <= off) {
+					off = reused[next + 1];
+					if (entry != null)
+						journal.progress(entry, off);
+					continue;
+				}
+				long end = next < reused.length ? reused[next] : size;
+				byte[] bytes = new byte[(int)Math.min(chunk_size, end - off)];
+				file.seek(off);
+				file.read(bytes);
+				if (!compression.put(server, relative_path, txn, bytes, 
+						off)) {
+					// the session timed out, the staged chunks are gone
+					staged = server.begin_upload(relative_path, txn);
+					if (staged == -1)
+						return -1;
+					off = Math.min(off, staged);
+					if (off == 0) {
+						reused = reuse(file, relative_path, txn);
+						next = 0;
+					}
+					continue;
+				}
+				off += bytes.length;
+				if (entry != null)
+					journal.progress(entry, off);
+			}
+		} catch (IOException e) {
+			// journaled uploads are resumed later, others are dropped
+			if (entry == null)
+				server.abort_upload(txn);
+			throw e;
+		}
+		// the version number is final once the upload is committed
+		return server.commit_upload(txn);
+	}
+
+	/**
+	 * Chunk a file by content and let the server copy the chunks it 
+	 * already has for the path into the stage of an upload
+	 *
+	 * @param file the file to upload
+	 * @param relative_path relative path of file on server
+	 * @param txn id of the upload session
+	 * @return The ranges of file filled by the server, pairs of start and 
+	 * end offsets in file order
+	 */
+	static long[] reuse(ProxyFile file, String relative_path, long txn) 
+		throws IOException {
+		long size = file.length();
+		if (size < DEDUP_MIN)
+			return new long[0];
+		ContentChunker chunker = new ContentChunker();
+		byte[] buf = new byte[1 << 20];
+		file.seek(0);
+		int n;
+		while ((n = file.read(buf)) > 0)
+			chunker.update(buf, 0, n);
+		chunker.finish();
+		int[] lengths = chunker.lengths();
+		byte[] copied = server.reuse_chunks(txn, chunker.hashes(), lengths);
+		if (copied == null)// the session is gone, the next chunk finds out
+			return new long[0];
+		long[] ranges = new long[lengths.length * 2];
+		int count = 0;
+		long off = 0;
+		for (int i = 0; i < lengths.length; off += lengths[i++]) {
+			if ((copied[i >> 3] & (1 << (i & 7))) == 0)
+				continue;
+			if (count > 0 && ranges[count - 1] == off) {// adjacent, merge
+				ranges[count - 1] += lengths[i];
+			} else {
+				ranges[count++] = off;
+				ranges[count++] = off + lengths[i];
+			}
+		}
+		return Arrays.copyOf(ranges, count);
+	}
+
+	/**
+	 * Generate the id of a new upload
+	 *
+	 * @return A random upload id
+	 */
+	static long new_txn() {
+		return ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+	}
+
+	/**
+	 * Upload a journaled commit from its durable copy and finish it
+	 *
+	 * @param entry the journal entry
+	 * @param base_size the size of the base version on server
+	 * @return The latest version number of file, or -1 if failed
+	 */
+	static int upload_entry(WriteJournal.Entry entry, long base_size) 
+		throws IOException {
+		int version;
+		try (ProxyFile pending = WriteJournal.open(entry, server, 
+				base_size)) {
+			version = upload(pending, entry.relative_path, entry.txn,
+				entry.progress, entry);
+		}
+		if (version != -1)
+			journal.done(entry);
+		return version;
+	}
+
+	/**
+	 * Resume the commits an earlier run left unfinished, commits whose 
+	 * base version is no longer current on the server were either done 
+	 * or superseded, and are rolled back
+	 */
+	static void replay_journal() {
+		for (WriteJournal.Entry entry : journal.pending()) {
+			try {
+				long[] info = server.get_info(entry.relative_path);
+				if (info[0] != 1 || info[3] != entry.base_version) {
+					journal.done(entry);
+					continue;
+				}
+				upload_entry(entry, info[2]);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	private static class FileHandlingFactory implements FileHandlingMaking {
 		public FileHandling newclient() {
 			return new FileHandler();
@@ -503,6 +916,7 @@ class Proxy {
 		file_map = new ConcurrentHashMap<>();
 		File file = new File(args[2]);
 		cache_dir = file.getCanonicalPath();
+		meta_dir = cache_dir + ".meta";
 		try {
 			cache_size = Integer.parseInt(args[3]);
 		} catch (NumberFormatException e) {
@@ -512,14 +926,47 @@ class Proxy {
 		try {
 			String addr = args[0];
 			String port = args[1];
-			server = (ServerInterface) Naming.lookup(
-				"//" + addr+ ":" + port + "/server");
+			// a list of shards replaces the single server
+			String shards = System.getProperty("proxy.servers");
+			if (shards != null)
+				server = new ShardedServer(shards.split(","), 
+					Integer.getInteger("proxy.vnodes", HashRing.VNODES),
+					Boolean.getBoolean("proxy.rebalancing"));
+			else
+				server = (ServerInterface) Naming.lookup(
+					"//" + addr+ ":" + port + "/server");
+			// downloads are spread over the read replicas of the server
+			String replicas = System.getProperty("proxy.replicas");
+			if (replicas != null)
+				server = new ReplicatedServer(server, replicas.split(","), 
+					Double.parseDouble(System.getProperty(
+						"proxy.hedge_percentile", "95")));
 		} catch (NotBoundException e) {
 			e.printStackTrace();
 		}
 
+		// both sides agree on the codecs the transfers may use
+		int codecs = "false".equals(System.getProperty("proxy.compression"))
+			? 0 : Codec.ALL;
+		compression = new CompressionPolicy(server.negotiate(codecs));
+
 		cache = new myCache(cache_size, server);
 
+		// write-back journaling costs fsyncs on every close, opt-in only
+		if ("true".equals(System.getProperty("proxy.journal"))) {
+			journal = new WriteJournal(new File(meta_dir, "journal"));
+			replay_journal();
+		}
+
+		// with a feed, cached files are revalidated in bulk and may be 
+		// read up to one interval stale
+		long feed_interval = Long.getLong("proxy.feed_interval", 0);
+		if (feed_interval > 0) {
+			feed = new ChangeFeed(server, cache, feed_interval);
+			feed.sync();
+			feed.start();
+		}
+
 		(new RPCreceiver(new FileHandlingFactory())).run();
 	}
 
@@ -531,24 +978,38 @@ class Proxy {
 	private static class user_file {
 		String relative_path;
 		String full_path;
-		RandomAccessFile randomAccessFile;
+		ProxyFile proxyFile;
 		boolean dir_flag;
 		boolean write_flag;
+		// ranged reader if the file is streamed from server
+		StreamFile stream;
+		// whether the writer copy is a spool outside the cache
+		boolean spool;
+		// whether the writer copy is an overlay on its base read version
+		boolean overlay;
+		// version the file was opened at
+		int version;
+		// view of the file if it is read from memory or a shared mapping
+		ByteBuffer view;
+		// whether the view belongs to the memory tier
+		boolean in_memory;
+		// file position of a read through the view
+		long position;
 		/**
 		 * Constructor
 		 *
 		 * @param relative_path relativepath of file
 		 * @param full_path full path of file
-		 * @param randomAccessFile RandomAccessFile object of file
+		 * @param proxyFile the opened file
 		 * @param dir_flag whether it is a directory
 		 * @param write_flag whether it is writable
 		 */
 		user_file(String relative_path, String full_path, 
-		RandomAccessFile randomAccessFile, boolean dir_flag, 
+		ProxyFile proxyFile, boolean dir_flag, 
 		boolean write_flag) {
 			this.relative_path = relative_path;
 			this.full_path = full_path;
-			this.randomAccessFile = randomAccessFile;
+			this.proxyFile = proxyFile;
 			this.dir_flag = dir_flag;
 			this.write_flag = write_flag;
 		}
@@ -562,6 +1023,8 @@ class Proxy {
 		long size;
 		int version;
 		int user_count;
+		// content hash reported by the server, -1 if unknown
+		long hash = -1;
 		/**
 		 * Constructor
 		 *
@@ -0,0 +1,17 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * ProxyFile interface, a file opened by a client fd on the proxy
+ */
+public interface ProxyFile extends Closeable {
+
+    int read(byte[] buf) throws IOException;
+    void write(byte[] buf) throws IOException;
+    void seek(long pos) throws IOException;
+    long getFilePointer() throws IOException;
+    long length() throws IOException;
+    void flush() throws IOException;
+    void close() throws IOException;
+
+}
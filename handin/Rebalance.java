@@ -0,0 +1,102 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Rebalance Class, moves every file to the shard that owns it on the ring
+ * of a new shard list, with its version number, run after shards are
+ * added and before the proxies switch to the new list
+ *
+ * Usage: java Rebalance host:port,host:port,...
+ */
+public class Rebalance {
+    // bytes moved per call
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1)
+            return;
+        String[] shards = args[0].split(",");
+        HashRing ring = new HashRing(shards,
+            Integer.getInteger("proxy.vnodes", HashRing.VNODES));
+        ServerInterface[] servers = new ServerInterface[shards.length];
+        for (int i = 0; i < shards.length; i++)
+            servers[i] = ShardedServer.connect(shards[i]);
+
+        int moved = 0;
+        for (int i = 0; i < servers.length; i++) {
+            for (String path : servers[i].list_files()) {
+                int owner = ring.shard(path);
+                if (owner == i)
+                    continue;
+                if (move(path, servers[i], servers[owner])) {
+                    moved++;
+                } else {
+                    System.err.println("failed to move " + path + " from "
+                        + shards[i] + " to " + shards[owner]);
+                }
+            }
+        }
+        System.out.println("moved " + moved + " files");
+    }
+
+    /**
+     * Move a file between shards, copied again if it changes meanwhile,
+     * the source is unlinked only at the version copied
+     *
+     * @param path relative path of file
+     * @param from the shard holding the file
+     * @param to the shard owning the file
+     * @return True if moved, false if failed
+     */
+    private static boolean move(String path, ServerInterface from,
+            ServerInterface to) throws RemoteException {
+        while (true) {
+            long[] info = from.get_info(path);
+            if (info[0] != 1 || info[1] == 1)// gone meanwhile
+                return true;
+            int version = (int)info[3];
+            if (!copy(path, version, info[2], from, to))
+                return false;
+            // the version number goes along, so cached copies stay valid
+            to.restore_version(path, version);
+            // refused if a commit landed meanwhile, which is moved again
+            if (from.unlink_if_version(path, version))
+                return true;
+        }
+    }
+
+    /**
+     * Copy a version of a file between shards
+     *
+     * @param path relative path of file
+     * @param version version number of file
+     * @param size the size of file
+     * @param from the shard holding the file
+     * @param to the shard owning the file
+     * @return True if copied, false if failed
+     */
+    private static boolean copy(String path, int version, long size,
+            ServerInterface from, ServerInterface to)
+        throws RemoteException {
+        long session = from.begin_download(path, version);
+        if (session < 0)
+            return false;
+        long txn = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        try {
+            if (to.begin_upload(path, txn) < 0)
+                return false;
+            for (long off = 0; off < size; off += CHUNK_SIZE) {
+                int len = (int)Math.min(CHUNK_SIZE, size - off);
+                byte[] bytes = from.get_chunk(session, len, off, Codec.NONE);
+                if (bytes == null || bytes.length != len
+                    || !to.put_chunk(txn, bytes, off, Codec.NONE, len)) {
+                    to.abort_upload(txn);
+                    return false;
+                }
+            }
+            return to.commit_upload(txn) != -1;
+        } finally {
+            from.end_download(session);
+        }
+    }
+}
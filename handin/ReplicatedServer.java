@@ -0,0 +1,415 @@
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ReplicatedServer Class, sends writes and freshness checks to the primary
+ * and downloads to a read replica holding the version with the content
+ * hash the primary reported, a chunk request slower than a percentile of
+ * the recent ones is hedged to a second server holding the version and
+ * the first reply wins
+ */
+public class ReplicatedServer implements ServerInterface {
+    // number of files whose primary information is remembered
+    private static final int MAX_INFOS = 1024;
+    // session of a server not asked yet
+    private static final long UNOPENED = Long.MIN_VALUE;
+    // the primary, the authority of every version
+    private final ServerInterface primary;
+    // the read replicas, then the primary
+    private final ServerInterface[] servers;
+    // relative path and primary information mapping, least recent first
+    private final Map<String, long[]> infos;
+    // download id and download mapping
+    private final Map<Long, Download> downloads = new ConcurrentHashMap<>();
+    // last download id handed out
+    private final AtomicLong next_download = new AtomicLong();
+    // replica the next download starts from, spreading the load
+    private final AtomicInteger next_replica = new AtomicInteger();
+    // latencies of the chunk requests
+    private final LatencyTracker latency;
+    // threads waiting on chunk requests
+    private final ExecutorService pool;
+
+    /**
+     * Constructor, replicas that cannot be reached are left out
+     *
+     * @param primary the primary server
+     * @param replicas addresses of the read replicas, as host:port
+     * @param percentile latency percentile after which a chunk request
+     * is hedged
+     */
+    public ReplicatedServer(ServerInterface primary, String[] replicas,
+            double percentile) {
+        this.primary = primary;
+        List<ServerInterface> list = new ArrayList<>();
+        for (String replica : replicas) {
+            try {
+                list.add(ShardedServer.connect(replica));
+            } catch (IOException | NotBoundException e) {
+                e.printStackTrace();
+            }
+        }
+        list.add(primary);
+        servers = list.toArray(new ServerInterface[0]);
+        infos = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, long[]> eldest) {
+                return size() > MAX_INFOS;
+            }
+        };
+        latency = new LatencyTracker(percentile);
+        pool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "replica-read");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Download class, a download open on some of the servers
+     */
+    private class Download {
+        // relative path of file
+        final String path;
+        // version number of file
+        final int version;
+        // content hash of the version on the primary, -1 if unknown
+        final long hash;
+        // session id on each server, -1 if the server cannot serve it
+        final AtomicLongArray sessions;
+        // one lock per server, a stalled server holds up only its own
+        final Object[] locks;
+        // the server chunks are asked from first
+        volatile int current;
+
+        Download(String path, int version, long hash) {
+            this.path = path;
+            this.version = version;
+            this.hash = hash;
+            sessions = new AtomicLongArray(servers.length);
+            locks = new Object[servers.length];
+            for (int i = 0; i < servers.length; i++) {
+                sessions.set(i, UNOPENED);
+                locks[i] = new Object();
+            }
+        }
+
+        /**
+         * Get the session on a server, opened on first use, a replica only
+         * serves the version if it has the same number and content hash
+         *
+         * @param i index of the server
+         * @return The session id, or -1 if the server cannot serve it
+         */
+        long session(int i) throws RemoteException {
+            synchronized (locks[i]) {
+                if (sessions.get(i) != UNOPENED)
+                    return sessions.get(i);
+                ServerInterface server = servers[i];
+                long session = -1;
+                if (server != primary) {
+                    try {
+                        long[] info = server.get_info(path);
+                        // a lagging replica, or one that numbered it apart
+                        if (hash != -1 && info[3] == version 
+                            && info[4] == hash)
+                            session = server.begin_download(path, version);
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    session = server.begin_download(path, version);
+                }
+                sessions.set(i, session);
+                return session;
+            }
+        }
+
+        /**
+         * Fetch a chunk from a server
+         *
+         * @param i index of the server
+         * @param len length of the chunk
+         * @param seek file position of the chunk
+         * @param codec codec of the reply
+         * @return The reply, or null if the server failed
+         */
+        byte[] fetch(int i, int len, long seek, int codec) {
+            try {
+                long session = session(i);
+                if (session < 0)
+                    return null;
+                return servers[i].get_chunk(session, len, seek, codec);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                if (servers[i] != primary)// left out from now on
+                    sessions.set(i, -1);
+                return null;
+            }
+        }
+
+        /**
+         * Fetch a chunk from the first other server serving the version,
+         * the replicas in order and the primary last
+         *
+         * @param skip index of the server left out
+         * @param len length of the chunk
+         * @param seek file position of the chunk
+         * @param codec codec of the reply
+         * @return The reply and the index of its server, or null if none
+         */
+        Reply hedge(int skip, int len, long seek, int codec) {
+            for (int i = 0; i < servers.length; i++) {
+                if (i == skip)
+                    continue;
+                byte[] bytes = fetch(i, len, seek, codec);
+                if (bytes != null)
+                    return new Reply(i, bytes);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reply class, a chunk and the server it came from
+     */
+    private static class Reply {
+        // index of the server
+        final int server;
+        // the reply
+        final byte[] bytes;
+
+        Reply(int server, byte[] bytes) {
+            this.server = server;
+            this.bytes = bytes;
+        }
+    }
+
+    @Override
+    public int negotiate(int codecs) throws RemoteException {
+        codecs = primary.negotiate(codecs);
+        // only codecs every replica supports
+        for (ServerInterface server : servers) {
+            if (server == primary)
+                continue;
+            try {
+                codecs &= server.negotiate(codecs);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        return codecs;
+    }
+
+    @Override
+    public long[] get_info(String path) throws RemoteException {
+        long[] info = primary.get_info(path);
+        synchronized (infos) {
+            infos.put(HashRing.key(path), info);
+        }
+        return info;
+    }
+
+    @Override
+    public long begin_download(String path, int version)
+        throws RemoteException {
+        long[] info;
+        synchronized (infos) {
+            info = infos.get(HashRing.key(path));
+        }
+        long hash = info != null && info[3] == version ? info[4] : -1;
+        Download download = new Download(path, version, hash);
+        // the replicas in turn, the primary last
+        int replicas = servers.length - 1;
+        int start = replicas > 0
+            ? Math.floorMod(next_replica.getAndIncrement(), replicas) : 0;
+        for (int k = 0; k < servers.length; k++) {
+            int i = k < replicas ? (start + k) % replicas : replicas;
+            if (open(download, i) >= 0) {
+                download.current = i;
+                long id = next_download.incrementAndGet();
+                downloads.put(id, download);
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Open a download on a server, a replica slower than the latency 
+     * percentile is passed over, its session is opened in the background
+     * and closed with the download
+     *
+     * @param download the download
+     * @param i index of the server
+     * @return The session id, or -1 if the server cannot serve it
+     */
+    private long open(Download download, int i) throws RemoteException {
+        if (servers[i] == primary)
+            return download.session(i);
+        Future<Long> future = pool.submit(() -> download.session(i));
+        try {
+            return future.get(latency.threshold(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted", e);
+        }
+    }
+
+    @Override
+    public byte[] get_chunk(long id, int len, long seek, int codec)
+        throws RemoteException {
+        Download download = downloads.get(id);
+        if (download == null)
+            return null;
+        long start = System.nanoTime();
+        int first = download.current;
+        CompletionService<Reply> replies =
+            new ExecutorCompletionService<>(pool);
+        replies.submit(() -> {
+            byte[] bytes = download.fetch(first, len, seek, codec);
+            return bytes != null ? new Reply(first, bytes) : null;
+        });
+        int pending = 1;
+        boolean hedged = false;
+        try {
+            while (pending > 0) {
+                Future<Reply> done = hedged ? replies.take()
+                    : replies.poll(latency.threshold(), TimeUnit.NANOSECONDS);
+                Reply reply = null;
+                if (done != null) {
+                    pending--;
+                    reply = done.get();
+                }
+                if (reply != null) {
+                    latency.record(System.nanoTime() - start);
+                    // later chunks go to the server that answered first
+                    download.current = reply.server;
+                    return reply.bytes;
+                }
+                if (!hedged) {// too slow or failed, ask another server
+                    hedged = true;
+                    pending++;
+                    replies.submit(() -> download.hedge(first, len, seek,
+                        codec));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RemoteException("Chunk failed", e.getCause());
+        }
+        return null;
+    }
+
+    @Override
+    public void end_download(long id) throws RemoteException {
+        Download download = downloads.remove(id);
+        if (download == null)
+            return;
+        for (int i = 0; i < servers.length; i++) {
+            long session = download.sessions.get(i);
+            if (session < 0)
+                continue;
+            if (servers[i] == primary) {
+                primary.end_download(session);
+                continue;
+            }
+            // a stalled replica does not hold up the close
+            ServerInterface replica = servers[i];
+            pool.execute(() -> {
+                try {
+                    replica.end_download(session);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    @Override
+    public byte[] get_manifest(String path, int version)
+        throws RemoteException {
+        return primary.get_manifest(path, version);
+    }
+
+    @Override
+    public void create_file(String path) throws RemoteException {
+        primary.create_file(path);
+    }
+
+    @Override
+    public long begin_upload(String path, long id) throws RemoteException {
+        return primary.begin_upload(path, id);
+    }
+
+    @Override
+    public boolean put_chunk(long id, byte[] buf, long seek, int codec,
+            int raw_len) throws RemoteException {
+        return primary.put_chunk(id, buf, seek, codec, raw_len);
+    }
+
+    @Override
+    public byte[] reuse_chunks(long id, byte[] hashes, int[] lengths)
+        throws RemoteException {
+        return primary.reuse_chunks(id, hashes, lengths);
+    }
+
+    @Override
+    public int commit_upload(long id) throws RemoteException {
+        return primary.commit_upload(id);
+    }
+
+    @Override
+    public void abort_upload(long id) throws RemoteException {
+        primary.abort_upload(id);
+    }
+
+    @Override
+    public boolean unlink_file(String path) throws RemoteException {
+        return primary.unlink_file(path);
+    }
+
+    @Override
+    public boolean unlink_if_version(String path, int version)
+        throws RemoteException {
+        return primary.unlink_if_version(path, version);
+    }
+
+    @Override
+    public byte[] get_changes(long since) throws RemoteException {
+        return primary.get_changes(since);
+    }
+
+    @Override
+    public String[] list_files() throws RemoteException {
+        return primary.list_files();
+    }
+
+    @Override
+    public int restore_version(String path, int version)
+        throws RemoteException {
+        return primary.restore_version(path, version);
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.NotBoundException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
+
+/**
+ * Replicator Class, ships the committed versions and unlinks of a primary
+ * server to its read replicas, in commit order per replica and in the
+ * background, a version superseded before it is shipped is skipped and a
+ * replica that fails lags until the next change of the file
+ */
+public class Replicator {
+    // bytes shipped per call
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Source interface, reads the versions of the primary
+     */
+    public interface Source {
+        /**
+         * Open a version of a file
+         *
+         * @param path full path of file
+         * @param version version number of file
+         * @return A session reading the version, or null if it is gone
+         */
+        TransferSession open(String path, int version);
+    }
+
+    // root directory of the primary
+    private final String root_path;
+    // addresses of the replicas, as host:port
+    private final String[] addresses;
+    // connections to the replicas, null until connected
+    private final ServerInterface[] replicas;
+    // one shipping thread per replica, keeping the order of changes
+    private final ExecutorService[] shippers;
+    // reads the versions to ship
+    private final Source source;
+    // latest version number of a full path, 0 if gone
+    private final ToIntFunction<String> current;
+
+    /**
+     * Constructor
+     *
+     * @param root_path root directory of the primary
+     * @param addresses addresses of the replicas, as host:port
+     * @param source reads the versions to ship
+     * @param current latest version number of a full path
+     */
+    public Replicator(String root_path, String[] addresses, Source source,
+            ToIntFunction<String> current) {
+        this.root_path = root_path;
+        this.addresses = addresses.clone();
+        this.source = source;
+        this.current = current;
+        replicas = new ServerInterface[addresses.length];
+        shippers = new ExecutorService[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            shippers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "replica-shipper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Queue a change of a file for every replica
+     *
+     * @param path full path of file
+     * @param version the new version number, 0 if the file is unlinked
+     */
+    public void changed(String path, int version) {
+        for (int i = 0; i < shippers.length; i++) {
+            int replica = i;
+            shippers[i].execute(() -> ship(replica, path, version));
+        }
+    }
+
+    /**
+     * Ship a change of a file to a replica
+     *
+     * @param replica index of the replica
+     * @param path full path of file
+     * @param version the new version number, 0 if the file is unlinked
+     */
+    private void ship(int replica, String path, int version) {
+        String relative = path.substring(root_path.length() + 1);
+        try {
+            ServerInterface server = connect(replica);
+            if (version == 0) {
+                server.unlink_file(relative);
+                return;
+            }
+            if (current.applyAsInt(path) != version)// a newer one follows
+                return;
+            TransferSession session = source.open(path, version);
+            if (session == null)
+                return;
+            try {
+                if (copy(server, relative, session))
+                    // the replica serves it under the number of the primary
+                    server.restore_version(relative, version);
+            } finally {
+                session.close();
+            }
+        } catch (IOException | NotBoundException e) {
+            e.printStackTrace();
+            replicas[replica] = null;
+        }
+    }
+
+    /**
+     * Upload a version to a replica
+     *
+     * @param server the replica
+     * @param relative relative path of file
+     * @param session reads the version
+     * @return True if committed, false if refused
+     */
+    private static boolean copy(ServerInterface server, String relative,
+            TransferSession session) throws IOException {
+        long txn = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        if (server.begin_upload(relative, txn) < 0)
+            return false;
+        long size = session.size();
+        for (long off = 0; off < size; off += CHUNK_SIZE) {
+            ByteBuffer buffer =
+                ByteBuffer.allocate((int)Math.min(CHUNK_SIZE, size - off));
+            while (buffer.hasRemaining()
+                && session.read(buffer, off + buffer.position()) > 0);
+            if (buffer.hasRemaining() || !server.put_chunk(txn,
+                    buffer.array(), off, Codec.NONE, buffer.capacity())) {
+                server.abort_upload(txn);
+                return false;
+            }
+        }
+        return server.commit_upload(txn) != -1;
+    }
+
+    /**
+     * Get the connection to a replica, connecting on first use
+     *
+     * @param replica index of the replica
+     * @return The replica
+     */
+    private ServerInterface connect(int replica)
+        throws IOException, NotBoundException {
+        if (replicas[replica] == null)
+            replicas[replica] = ShardedServer.connect(addresses[replica]);
+        return replicas[replica];
+    }
+}
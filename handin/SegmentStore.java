@@ -0,0 +1,341 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SegmentStore Class, appends cached versions into large segment files
+ * with an in-memory index, so eviction is a metadata update and space is
+ * reclaimed lazily by background compaction
+ */
+public class SegmentStore implements CacheStore {
+    // size of one segment file
+    static final long SEGMENT_SIZE = 64L << 20;
+    // largest blob appended to a segment, larger ones are plain files
+    static final long MAX_BLOB = 16L << 20;
+    // live share below which a sealed segment is compacted
+    private static final double COMPACT_RATIO = 0.5;
+    // interval between compaction passes in milliseconds
+    private static final long COMPACT_INTERVAL = 5000;
+    // directory holding the segment files
+    private File dir;
+    // store for large blobs and writer copies
+    private FileStore files;
+    // async deleter of dropped segments
+    private Trash trash;
+    // path and blob location mapping
+    private Map<String, Location> index;
+    // segment id and segment mapping
+    private Map<Integer, Segment> segments;
+    // the segment new blobs are appended to
+    private Segment active;
+    // id of the next segment
+    private int next_id;
+
+    /**
+     * Constructor
+     *
+     * @param dir directory holding the segment files
+     * @param trash async deleter of dropped segments
+     */
+    public SegmentStore(File dir, Trash trash) throws IOException {
+        this.dir = dir;
+        this.trash = trash;
+        files = new FileStore(trash);
+        index = new HashMap<>();
+        segments = new HashMap<>();
+        next_id = 0;
+        dir.mkdirs();
+        // segments of an earlier run have no index, start over
+        File[] old = dir.listFiles();
+        if (old != null)
+            for (File file : old)
+                file.delete();
+        active = new_segment();
+        Thread compactor = new Thread(this::compact_loop, "segment-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Location class, where a blob lives in a segment
+     */
+    private static class Location {
+        // the segment holding the blob
+        Segment segment;
+        // offset of the blob in the segment
+        long offset;
+        // length of the blob
+        long length;
+
+        Location(Segment segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Segment class, one segment file
+     */
+    private static class Segment {
+        // segment id
+        int id;
+        // the segment file
+        File file;
+        // channel of the segment file
+        FileChannel channel;
+        // bytes appended so far
+        long used;
+        // bytes of blobs still indexed
+        long live;
+        // number of blobs being written into the segment
+        int pending;
+    }
+
+    /**
+     * Create a new cached blob, appended to the active segment
+     *
+     * @param path the path of file
+     * @param size the size of file
+     * @return A writer for the blob content
+     */
+    @Override
+    public synchronized Writer create(String path, long size)
+        throws IOException {
+        if (size > MAX_BLOB)
+            return files.create(path, size);
+        if (active.used + size > SEGMENT_SIZE)
+            active = new_segment();
+        // reserve the range, the content is written positionally
+        Location location = new Location(active, active.used, size);
+        active.used += size;
+        active.pending++;
+        return new SegmentWriter(path, location);
+    }
+
+    /**
+     * Move a local file into the store
+     *
+     * @param path the path of file
+     * @param file the local file to take
+     */
+    @Override
+    public void adopt(String path, File file) throws IOException {
+        long size = file.length();
+        if (size > MAX_BLOB) {
+            files.adopt(path, file);
+            return;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+                Writer writer = create(path, size)) {
+            FileChannel channel = in.getChannel();
+            long pos = 0;
+            while (pos < size)
+                pos += channel.transferTo(pos, size - pos, writer);
+            writer.commit();
+        }
+        file.delete();
+    }
+
+    /**
+     * Map a cached blob read-only
+     *
+     * @param path the path of file
+     * @return A read-only view of the blob, or null if it is too large
+     */
+    @Override
+    public synchronized ByteBuffer map(String path) throws IOException {
+        Location location = index.get(path);
+        if (location == null)
+            return files.map(path);
+        // the mapping stays valid after the segment is compacted away
+        return location.segment.channel.map(FileChannel.MapMode.READ_ONLY,
+            location.offset, location.length);
+    }
+
+    /**
+     * Get the plain file holding a cached version
+     *
+     * @param path the path of file
+     * @return The file, or null if the blob lives in a segment
+     */
+    @Override
+    public synchronized File file(String path) {
+        return index.containsKey(path) ? null : files.file(path);
+    }
+
+    /**
+     * Delete a cached blob, only its index entry goes away now
+     *
+     * @param path the path of file
+     */
+    @Override
+    public synchronized void delete(String path) {
+        Location location = index.remove(path);
+        if (location == null) {
+            files.delete(path);
+            return;
+        }
+        location.segment.live -= location.length;
+        if (location.segment.live <= 0 && location.segment != active
+            && location.segment.pending == 0)
+            drop(location.segment);
+    }
+
+    /**
+     * Open a new active segment
+     *
+     * @return The new segment
+     */
+    private Segment new_segment() throws IOException {
+        Segment segment = new Segment();
+        segment.id = next_id++;
+        segment.file = new File(dir, "segment-" + segment.id);
+        segment.channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        segments.put(segment.id, segment);
+        return segment;
+    }
+
+    /**
+     * Close and delete a segment holding no live blob
+     *
+     * @param segment the segment to drop
+     */
+    private void drop(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        trash.discard(segment.file);
+    }
+
+    /**
+     * Compact sealed segments whose live share is low, forever
+     */
+    private void compact_loop() {
+        while (true) {
+            try {
+                Thread.sleep(COMPACT_INTERVAL);
+                compact();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Copy the live blobs of sparse sealed segments to the active segment
+     * and delete the old segment files
+     */
+    synchronized void compact() throws IOException {
+        List<Segment> victims = new ArrayList<>();
+        for (Segment segment : segments.values())
+            if (segment != active && segment.pending == 0
+                && segment.live < segment.used * COMPACT_RATIO)
+                victims.add(segment);
+        if (victims.isEmpty())
+            return;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (!victims.contains(location.segment))
+                continue;
+            if (active.used + location.length > SEGMENT_SIZE)
+                active = new_segment();
+            long pos = 0;
+            while (pos < location.length)
+                pos += location.segment.channel.transferTo(
+                    location.offset + pos, location.length - pos,
+                    active.channel.position(active.used + pos));
+            location.segment.live -= location.length;
+            entry.setValue(new Location(active, active.used, location.length));
+            active.used += location.length;
+            active.live += location.length;
+        }
+        for (Segment segment : victims)
+            drop(segment);
+    }
+
+    /**
+     * Make a written blob visible
+     *
+     * @param path the path of file
+     * @param location where the blob was written
+     */
+    private synchronized void publish(String path, Location location) {
+        location.segment.pending--;
+        Location old = index.put(path, location);
+        location.segment.live += location.length;
+        if (old != null)
+            old.segment.live -= old.length;
+    }
+
+    /**
+     * SegmentWriter class, writes a blob into its reserved segment range
+     */
+    private class SegmentWriter implements Writer {
+        // the path of file
+        String path;
+        // the reserved range
+        Location location;
+        // bytes written so far
+        long written;
+        // whether the writer is open
+        boolean open;
+
+        SegmentWriter(String path, Location location) {
+            this.path = path;
+            this.location = location;
+            this.open = true;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            // the version is longer than reserved, callers would spin
+            if (src.remaining() > location.length - written)
+                throw new IOException("Blob longer than reserved");
+            ByteBuffer part = src.duplicate();
+            int done = 0;
+            while (part.hasRemaining())
+                done += location.segment.channel.write(part,
+                    location.offset + written + done);
+            src.position(src.position() + done);
+            written += done;
+            return done;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            // a short blob would be published with stale bytes in its tail
+            if (written != location.length)
+                throw new IOException("Blob shorter than reserved");
+            open = false;
+            publish(path, location);
+        }
+
+        @Override
+        public void close() {
+            if (!open)
+                return;
+            // an uncommitted range is never indexed and stays dead space
+            open = false;
+            synchronized (SegmentStore.this) {
+                location.segment.pending--;
+            }
+        }
+    }
+}
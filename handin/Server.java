@@ -1,25 +1,90 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 /**
  * Server class
  */
 public class Server extends UnicastRemoteObject implements ServerInterface {
+    // directory under the root reserved for server metadata
+    static final String META_DIR = ".server";
+    // seconds a superseded version is kept for its readers
+    private static final long SNAPSHOT_RETENTION = 
+        Long.getLong("server.snapshot_retention", 60);
     // root path of server
     private static String root_path;
-    // file path and synchronized object mapping
-    private static Map<String, Object> sync_map;
-    // file path and version number mapping
-    private static Map<String, Integer> version_map;
+    // deleter of superseded snapshots
+    private static ScheduledExecutorService reaper;
+    // milliseconds an idle transfer session is kept
+    private static final long SESSION_TIMEOUT = 
+        Long.getLong("server.session_timeout", 60000);
+    // upload session id and session mapping
+    private static Map<Long, TransferSession> uploads;
+    // download session id and session mapping
+    private static Map<Long, TransferSession> downloads;
+    // id of the last download session
+    private static AtomicLong next_session;
+    // batches durable commits, null if commits are not forced
+    private static GroupCommit group_commit;
+    // reader/writer locks of the file paths
+    private static LockManager locks;
+    // guards paths and versions, reads are optimistic
+    private static StampedLock version_lock;
+    // interned ids of the file paths with a version
+    private static PathTable paths;
+    // path id and version number mapping, for files the server wrote
+    private static IntIntMap versions;
+    // write-ahead log of the version numbers, null if they are not kept
+    private static VersionLog version_log;
+    // recent version changes, for proxies revalidating in bulk
+    private static ChangeLog change_log;
+    // ships the committed versions to the read replicas, null if none
+    private static Replicator replicator;
+    // file path and file metadata index
+    private static MetadataIndex metadata;
+    // full paths whose content hash is being computed in the background
+    private static Set<String> hashing;
+    // hot blocks of file versions, null if disabled
+    private static ChunkCache chunk_cache;
+    // content-addressed store of the written files, null if files are 
+    // stored plainly under the root
+    private static ChunkStore chunk_store;
+    // mask of the codecs the server supports
+    private static int codecs;
+    // file path and manifest of its latest version, least recent first
+    private static Map<String, Manifest> manifests;
+    // file path and chunk index of its latest version, least recent first
+    private static Map<String, ChunkIndex> chunk_indexes;
 
     /**
      * Constructor
@@ -38,8 +103,81 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
             e.printStackTrace();
             return;
         }
-        sync_map = new ConcurrentHashMap<>();
-        version_map = new ConcurrentHashMap<>();
+        locks = new LockManager(Integer.getInteger("server.lock_stripes", 
+            1024));
+        version_lock = new StampedLock();
+        paths = new PathTable(1024);
+        versions = new IntIntMap(1024);
+        change_log = new ChangeLog(Integer.getInteger("server.change_log", 
+            4096));
+        uploads = new ConcurrentHashMap<>();
+        hashing = ConcurrentHashMap.newKeySet();
+        downloads = new ConcurrentHashMap<>();
+        next_session = new AtomicLong();
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // staged uploads and snapshots of an earlier run are stale
+        delete_tree(new File(root_path, META_DIR + "/stage"));
+        delete_tree(new File(root_path, META_DIR + "/versions"));
+        version_log = new VersionLog(new File(root_path, META_DIR), 
+            Integer.getInteger("server.version_snapshot", 4096));
+        try {
+            // versions survive restarts, so cached copies stay valid
+            version_log.load((relative, version) -> 
+                apply_version(root_path + relative, version));
+        } catch (IOException e) {
+            e.printStackTrace();
+            version_log = null;
+        }
+        String replicas = System.getProperty("server.replicas");
+        if (replicas != null)
+            replicator = new Replicator(root_path, replicas.split(","),
+                Server::open_version, Server::get_version);
+        if ("cas".equals(System.getProperty("server.store"))) {
+            try {
+                chunk_store = new ChunkStore(root_path, 
+                    new File(root_path, META_DIR + "/cas"), 
+                    Boolean.getBoolean("server.durable"));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        metadata = new MetadataIndex(root_path, META_DIR);
+        codecs = "false".equals(System.getProperty("server.compression"))
+            ? 0 : Codec.ALL;
+        int max_manifests = Integer.getInteger("server.manifests", 1024);
+        manifests = new LinkedHashMap<String, Manifest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Manifest> eldest) {
+                return size() > max_manifests;
+            }
+        };
+        int max_indexes = Integer.getInteger("server.chunk_indexes", 64);
+        chunk_indexes = new LinkedHashMap<String, ChunkIndex>(16, 0.75f, 
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, ChunkIndex> eldest) {
+                return size() > max_indexes;
+            }
+        };
+        long cache_budget = Long.getLong("server.chunk_cache", 64L << 20);
+        if (cache_budget > 0)
+            chunk_cache = new ChunkCache(cache_budget);
+        reaper.scheduleWithFixedDelay(Server::expire_sessions, 
+            SESSION_TIMEOUT / 2, SESSION_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        if (Boolean.getBoolean("server.durable")) {
+            // commits are forced in batches, latency bounded by the delay
+            group_commit = new GroupCommit(
+                Long.getLong("server.commit_delay", 2),
+                Integer.getInteger("server.commit_batch", 64),
+                Server::publish, Server::sync_versions);
+        }
         int port = 0;
         try {
             port = Integer.parseInt(args[0]);
@@ -63,45 +201,236 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
     }
 
     /**
-     * Get the file for the client
+     * Agree on the codecs transfers may use
+     *
+     * @param codecs mask of the codecs the client supports
+     * @return Mask of the codecs both sides support
+     */
+    @Override
+    public int negotiate(int codecs) throws RemoteException {
+        return codecs & Server.codecs;
+    }
+
+    /**
+     * Begin downloading a version of a file, the snapshot of the version 
+     * is resolved and opened once for all chunks
      *
      * @param path relative path of file on server
-     * @param len length of file
-     * @param off file position offset
-     * @return An array of bytes of the file
+     * @param version version number of file to read
+     * @return The download session id, or -1 if the version is gone
      */
     @Override
-    public byte[] get_file(String path, int len, long off)
+    public long begin_download(String path, int version) 
         throws RemoteException {
+        if (is_meta(path))
+            return -1;
         // the full path
-        path = root_path + '/'+ path;
-        File file = new File(path);
+        path = resolve(root_path + '/' + path);
+        TransferSession session = open_version(path, version);
+        if (session == null)
+            return -1;
+        long id = next_session.incrementAndGet();
+        downloads.put(id, session);
+        return id;
+    }
+
+    /**
+     * Open a version of a file
+     *
+     * @param path full path of file
+     * @param version version number of file to read
+     * @return A download session of the version, or null if it is gone
+     */
+    private static TransferSession open_version(String path, int version) {
+        // commits and unlinks of the path wait until the file is open
+        StampedLock lock = locks.of(path);
+        long stamp = lock.readLock();
         try {
-            // store the file path and its sync object mapping
-            sync_map.putIfAbsent(file.getCanonicalPath(), new Object());
+            int current = get_version(path);
+            if (version > current)
+                return null;
+            if (chunk_store != null) {
+                ChunkStore.Blob blob = version == current 
+                    ? chunk_store.get(path) : null;
+                if (blob == null)
+                    blob = chunk_store.snapshot(path, version);
+                if (blob != null)
+                    return new TransferSession(path, version, 
+                        chunk_store.open(blob));
+            }
+            File file = new File(path);
+            // older versions, and the last version of an unlinked file, 
+            // are read from their snapshot
+            if (version != current || !file.isFile())
+                file = snapshot_file(path, version);
+            if (!file.isFile())
+                return null; // superseded and already reaped
+            return new TransferSession(path, file, version, 
+                FileChannel.open(file.toPath(), StandardOpenOption.READ));
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        } finally {
+            lock.unlockRead(stamp);
         }
-        byte[] bytes = new byte[len];
+    }
+
+    /**
+     * Get the version changes after a sequence number
+     *
+     * @param since the last sequence number seen, -1 for none
+     * @return The encoded ChangeLog batch
+     */
+    @Override
+    public byte[] get_changes(long since) throws RemoteException {
+        return change_log.changes(since);
+    }
+
+    /**
+     * List the files on the server, for moving them between shards
+     *
+     * @return Relative paths of all the files
+     */
+    @Override
+    public String[] list_files() throws RemoteException {
+        List<String> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(Paths.get(root_path))) {
+            walk.filter(Files::isRegularFile)
+                .map(file -> file.toString().substring(root_path.length() + 1))
+                .filter(file -> !is_meta(file))
+                .forEach(files::add);
+        } catch (IOException e) {
+            throw new RemoteException("List failed", e);
+        }
+        if (chunk_store != null)// the files are not in the tree
+            for (String path : chunk_store.paths())
+                files.add(path.substring(root_path.length() + 1));
+        return files.toArray(new String[0]);
+    }
+
+    /**
+     * Raise the version number of a file moved from another shard, so 
+     * the versions proxies cached from there stay in order
+     *
+     * @param path relative path of file on server
+     * @param version version number of file on the other shard
+     * @return The version number of file, or -1 if refused
+     */
+    @Override
+    public int restore_version(String path, int version) 
+        throws RemoteException {
+        if (is_meta(path))
+            return -1;
+        // the full path
+        path = resolve(root_path + '/' + path);
+        StampedLock lock = locks.of(path);
+        long stamp = lock.writeLock();
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-            randomAccessFile.seek(off);
-            randomAccessFile.read(bytes);
-        } catch (Exception e) {
-            e.printStackTrace();
+            int current = get_version(path);
+            if (version <= current)
+                return current;
+            set_version(path, version);
+            invalidate(path);
+            return version;
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        return bytes;
     }
 
     /**
-     * Get the size of file
+     * Get the block manifest of a version of a file
      *
      * @param path relative path of file on server
-     * @return size of the file
+     * @param version version number of file
+     * @return The block hashes, or null if the version is gone
      */
-    private long get_file_len(String path) throws RemoteException {
-        File file = new File(path);
-        return file.length();
+    @Override
+    public byte[] get_manifest(String path, int version) 
+        throws RemoteException {
+        if (is_meta(path))
+            return null;
+        // the full path
+        path = resolve(root_path + '/' + path);
+        CompletableFuture<byte[]> hashes = null;
+        synchronized (manifests) {
+            Manifest manifest = manifests.get(path);
+            if (manifest != null && manifest.version == version)
+                hashes = manifest.hashes;
+        }
+        try {
+            if (hashes != null)// computed on commit
+                return hashes.join();
+            TransferSession session = open_version(path, version);
+            if (session == null)
+                return null;
+            try {
+                byte[] computed = BlockManifest.compute(session, 
+                    session.size());
+                put_manifest(path, version, 
+                    CompletableFuture.completedFuture(computed));
+                return computed;
+            } finally {
+                session.close();
+            }
+        } catch (IOException | CompletionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get a chunk of a download
+     *
+     * @param id download session id
+     * @param len length of the chunk
+     * @param off file position offset
+     * @param codec codec to pack the chunk with, Codec.NONE for raw bytes
+     * @return An array of bytes of the chunk, packed unless the codec is 
+     * Codec.NONE, shorter than asked at the end of file, or null if the 
+     * session is gone
+     */
+    @Override
+    public byte[] get_chunk(long id, int len, long off, int codec) 
+        throws RemoteException {
+        TransferSession session = downloads.get(id);
+        if (session == null)
+            return null;
+        session.touch();
+        byte[] bytes = new byte[len];
+        int done = 0;
+        try {
+            if (chunk_cache != null) {// hot blocks are served from memory
+                // blobs are keyed by content, paths holding it share them
+                done = chunk_cache.read(session.cache_key(), 
+                    session.identity, session, bytes, off);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int n;
+                while (buffer.hasRemaining() && (n = session.read(buffer, 
+                        off + buffer.position())) > 0);
+                done = buffer.position();
+            }
+        } catch (IOException e) {
+            // never served as content, the reader aborts the fetch
+            throw new RemoteException("Chunk read failed", e);
+        }
+        if (done < len)// past the end of file
+            bytes = Arrays.copyOf(bytes, done);
+        if (codec == Codec.NONE || (codecs & (1 << codec)) == 0)
+            return bytes;
+        return Codec.pack(codec, bytes);
+    }
+
+    /**
+     * End a download
+     *
+     * @param id download session id
+     */
+    @Override
+    public void end_download(long id) throws RemoteException {
+        TransferSession session = downloads.remove(id);
+        if (session != null)
+            session.close();
     }
 
     /**
@@ -111,75 +440,375 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
      */
     @Override
     public void create_file(String path) throws RemoteException {
+        if (is_meta(path))
+            return;
         // the full path
-        path = root_path + '/' + path;
+        path = resolve(root_path + '/' + path);
         File file = new File(path);
+        StampedLock lock = locks.of(path);
+        long stamp = lock.writeLock();
         try {
-            // store the file path and its sync object mapping
-            sync_map.putIfAbsent(file.getCanonicalPath(), new Object());
-        } catch (IOException e){
+            if(file.getParentFile() != null 
+                && !file.getParentFile().exists()) {
+                // create parent directory if it does not exist
+                new File(file.getParent()).mkdirs();
+            }
+            if (chunk_store == null)
+                file.createNewFile();
+            else if (chunk_store.get(path) == null && !file.exists())
+                chunk_store.link(path, chunk_store.empty());
+        } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            metadata.update(path);
+            if (chunk_store != null)// the file is not in the tree
+                metadata.update(file.getParent());
+            lock.unlockWrite(stamp);
         }
-        if(file.getParentFile() != null && !file.getParentFile().exists()) {
-            // create parent directory if it does not exist
-            new File(file.getParent()).mkdirs();
-        }
+    }
+
+    /**
+     * Begin or resume uploading a file, chunks are staged per upload and 
+     * published atomically on commit
+     *
+     * @param path relative path of file on server
+     * @param id upload session id chosen by the client
+     * @return Bytes already staged for the upload, or -1 if refused
+     */
+    @Override
+    public long begin_upload(String path, long id) throws RemoteException {
+        if (is_meta(path))
+            return -1;
+        TransferSession session = uploads.get(id);
         try {
-            file.createNewFile();
+            if (session == null) {
+                // the full path
+                path = resolve(root_path + '/' + path);
+                File stage = stage_file(id);
+                session = new TransferSession(path, stage, 0, FileChannel.open(
+                    stage.toPath(), StandardOpenOption.CREATE, 
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+                TransferSession old = uploads.putIfAbsent(id, session);
+                if (old != null) {
+                    session.close();
+                    session = old;
+                }
+            }
+            session.touch();
+            return session.channel.size();
         } catch (IOException e) {
             e.printStackTrace();
+            return -1;
         }
     }
 
     /**
-     * Write file to server
+     * Stage a chunk of an upload
      *
-     * @param path relative path of file on server
-     * @param buf byte number to write
+     * @param id upload session id
+     * @param buf byte array of data to write, encoded with the codec
      * @param off file position offset
-     * @param flag whether the whole file write is done
-     * @return The latest version number of file
+     * @param codec codec the data is encoded with
+     * @param raw_len length of the data before encoding
+     * @return True if staged, false if the session is gone
      */
     @Override
-    public int write_to_file(String path, byte[] buf, long off, boolean flag)
-    throws RemoteException{
-        // the full path
-        path = root_path + '/' + path;
-        File file = new File(path);
+    public boolean put_chunk(long id, byte[] buf, long off, int codec, 
+        int raw_len) throws RemoteException {
+        TransferSession session = uploads.get(id);
+        if (session == null)
+            return false;
+        session.touch();
+        try {
+            buf = Codec.decode(codec, buf, 0, buf.length, raw_len);
+        } catch (IOException e) {
+            throw new RemoteException("Bad chunk", e);
+        }
+        // the stage is private to the upload, no lock is needed
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
         try {
-            // store the file path and its sync object mapping
-            sync_map.putIfAbsent(file.getCanonicalPath(), new Object());
+            while (buffer.hasRemaining())
+                session.channel.write(buffer, off + buffer.position());
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
+        session.hash(buf, 0, buf.length, off);
+        return true;
+    }
 
-        if(file.getParentFile() != null && !file.getParentFile().exists()) {
-            // create parent directory if it does not exist
-            new File(file.getParent()).mkdirs();
+    /**
+     * Copy the chunks of an upload the latest version of its file already 
+     * has into the stage, so the client only sends the other chunks
+     *
+     * @param id upload session id
+     * @param hashes hashes of the content-defined chunks of the upload
+     * @param lengths lengths of the chunks, in file order
+     * @return A bitmap of the chunks copied, or null if the session is gone
+     */
+    @Override
+    public byte[] reuse_chunks(long id, byte[] hashes, int[] lengths) 
+        throws RemoteException {
+        TransferSession session = uploads.get(id);
+        if (session == null)
+            return null;
+        session.touch();
+        byte[] copied = new byte[(lengths.length + 7) / 8];
+        ChunkIndex index = chunk_index(session.path);
+        if (index == null)
+            return copied;
+        TransferSession source = open_version(session.path, index.version);
+        if (source == null)
+            return copied;
+        ByteBuffer buffer = ByteBuffer.allocate(ContentChunker.MAX_SIZE);
+        long off = 0;
+        try {
+            for (int i = 0; i < lengths.length; off += lengths[i++]) {
+                Integer chunk = index.chunks.get(ByteBuffer.wrap(hashes, 
+                    i * ContentChunker.HASH_LEN, ContentChunker.HASH_LEN));
+                if (chunk == null || index.lengths[chunk] != lengths[i])
+                    continue;
+                buffer.clear().limit(lengths[i]);
+                long from = index.offsets[chunk];
+                int n;
+                while (buffer.hasRemaining() && (n = source.read(buffer, 
+                        from + buffer.position())) > 0);
+                if (buffer.hasRemaining())
+                    continue;
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    session.channel.write(buffer, off + buffer.position());
+                session.hash(buffer.array(), 0, lengths[i], off);
+                copied[i >> 3] |= 1 << (i & 7);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            source.close();
         }
+        return copied;
+    }
 
-        RandomAccessFile randomAccessFile;
-        // synchronization for multi-threads to write the file in order
-        synchronized(sync_map.get(path)) {
-            try {
-                randomAccessFile = new RandomAccessFile(file, "rw");
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return -1;
+    /**
+     * Get the chunk index of the latest version of a file, built on the 
+     * first upload that needs it
+     *
+     * @param path full path of file
+     * @return The chunk index, or null if the file has no content
+     */
+    private static ChunkIndex chunk_index(String path) {
+        int version = get_version(path);
+        synchronized (chunk_indexes) {
+            ChunkIndex index = chunk_indexes.get(path);
+            if (index != null && index.version == version)
+                return index;
+        }
+        TransferSession session = open_version(path, version);
+        if (session == null)
+            return null;
+        ChunkIndex index = new ChunkIndex();
+        index.version = version;
+        try {
+            ContentChunker chunker = ContentChunker.of(session);
+            byte[] hashes = chunker.hashes();
+            index.lengths = chunker.lengths();
+            index.offsets = new long[index.lengths.length];
+            index.chunks = new HashMap<>(index.lengths.length * 2);
+            long off = 0;
+            for (int i = 0; i < index.lengths.length; 
+                    off += index.lengths[i++]) {
+                index.offsets[i] = off;
+                index.chunks.putIfAbsent(ByteBuffer.wrap(hashes, 
+                    i * ContentChunker.HASH_LEN, ContentChunker.HASH_LEN), i);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            session.close();
+        }
+        synchronized (chunk_indexes) {
+            ChunkIndex old = chunk_indexes.get(path);
+            if (old == null || old.version <= version)
+                chunk_indexes.put(path, index);
+        }
+        return index;
+    }
+
+    /**
+     * ChunkIndex class, the content-defined chunks of one version of a file
+     */
+    private static class ChunkIndex {
+        // version number of file
+        int version;
+        // chunk hash and chunk number mapping
+        Map<ByteBuffer, Integer> chunks;
+        // file position of each chunk
+        long[] offsets;
+        // length of each chunk
+        int[] lengths;
+    }
+
+    /**
+     * Publish the staged file of an upload as the new version
+     *
+     * @param id upload session id
+     * @return The latest version number of file, or -1 if failed
+     */
+    @Override
+    public int commit_upload(long id) throws RemoteException {
+        TransferSession session = uploads.remove(id);
+        if (session == null)
+            return -1;
+        long hash;
+        try {
+            hash = session.content_hash();
+        } catch (IOException e) {
+            e.printStackTrace();
+            session.close();
+            session.file.delete();
+            return -1;
+        }
+        session.close();
+        if (group_commit != null)// acknowledged once durable
+            return group_commit.commit(session.path, session.file, hash);
+        try {
+            return publish(session.path, session.file, hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Drop an upload and its staged chunks
+     *
+     * @param id upload session id
+     */
+    @Override
+    public void abort_upload(long id) throws RemoteException {
+        TransferSession session = uploads.remove(id);
+        if (session == null)
+            return;
+        session.close();
+        session.file.delete();
+    }
+
+    /**
+     * Close the sessions of dead clients and drop their staged chunks
+     */
+    private static void expire_sessions() {
+        for (Map.Entry<Long, TransferSession> entry : uploads.entrySet())
+            if (entry.getValue().expired(SESSION_TIMEOUT)
+                && uploads.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close();
+                entry.getValue().file.delete();
+            }
+        for (Map.Entry<Long, TransferSession> entry : downloads.entrySet())
+            if (entry.getValue().expired(SESSION_TIMEOUT)
+                && downloads.remove(entry.getKey(), entry.getValue()))
+                entry.getValue().close();
+    }
+
+    /**
+     * Make a staged file the live version of its path
+     *
+     * @param path full path of file
+     * @param stage the staged content
+     * @param hash content hash of the staged file
+     * @return The latest version number of file
+     */
+    private static int publish(String path, File stage, long hash) 
+        throws IOException {
+        File file = new File(path);
+        // synchronization for multi-threads to publish the file in order
+        StampedLock lock = locks.of(path);
+        long stamp = lock.writeLock();
+        try {
+            if(file.getParentFile() != null 
+                && !file.getParentFile().exists()) {
+                // create parent directory if it does not exist
+                new File(file.getParent()).mkdirs();
+            }
+            ChunkStore.Blob old = chunk_store != null 
+                ? chunk_store.get(path) : null;
+            // the version being replaced, none if the file is new
+            int version = old != null || file.exists() 
+                ? get_version(path) : 0;
+            if (chunk_store != null)
+                return publish_blob(path, stage, hash, version, old);
+            // an identical rewrite keeps the version, so no cached copy 
+            // of the file goes stale
+            if (version > 0 && same_content(path, stage, hash)) {
+                stage.delete();
+                return version;
             }
             try {
-                randomAccessFile.seek(off);
-                randomAccessFile.write(buf);
+                // keep the superseded version for its readers
+                retire(path, version);
+                Files.move(stage.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
             } catch (IOException e) {
-                e.printStackTrace();
-                return -1;
+                stage.delete();
+                throw e;
             }
-            // store the file path and version number mapping
-            version_map.putIfAbsent(path, 0);
-            if (flag) // update file version number when write is done
-                version_map.put(path, version_map.get(path) + 1);
-            return version_map.get(path);
+            // update file version number when write is done
+            set_version(path, version + 1);
+            metadata.update(path, hash);
+            invalidate(path);
+            schedule_manifest(path, version + 1, file);
+            return version + 1;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Make a staged file the live version of its path in the chunk store, 
+     * the caller holds the write lock of the path
+     *
+     * @param path full path of file
+     * @param stage the staged content
+     * @param hash content hash of the staged file
+     * @param version the version being replaced, 0 if the file is new
+     * @param old the blob being replaced, null if none
+     * @return The latest version number of file
+     */
+    private static int publish_blob(String path, File stage, long hash, 
+            int version, ChunkStore.Blob old) throws IOException {
+        File file = new File(path);
+        ChunkStore.Blob blob;
+        try {
+            blob = chunk_store.put(stage, hash);
+        } finally {
+            stage.delete();
+        }
+        // an identical rewrite keeps the version
+        if (version > 0 && blob.same(old)) {
+            chunk_store.drop(blob);
+            return version;
         }
+        try {
+            // a plain file written before the store was enabled is kept 
+            // like a superseded version
+            if (old == null)
+                retire(path, version);
+            chunk_store.link(path, blob);
+        } catch (IOException e) {
+            chunk_store.drop(blob);
+            throw e;
+        }
+        if (old != null)
+            retire(path, version, old);
+        file.delete();
+        set_version(path, version + 1);
+        metadata.update(path);
+        metadata.update(file.getParent());
+        invalidate(path);
+        schedule_manifest(path, version + 1, file);
+        return version + 1;
     }
 
     /**
@@ -190,20 +819,64 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
      */
     @Override
     public boolean unlink_file(String path) throws RemoteException {
+        return unlink(path, -1);
+    }
+
+    /**
+     * Unlink a file from server only if it is still at a version, so a
+     * commit landing meanwhile is kept
+     *
+     * @param path relative path of file on server
+     * @param version the version number expected
+     * @return True if succeeded, false if the version changed or failed
+     */
+    @Override
+    public boolean unlink_if_version(String path, int version)
+        throws RemoteException {
+        return unlink(path, version);
+    }
+
+    /**
+     * Unlink a file, compared with the expected version under the lock of
+     * the path
+     *
+     * @param path relative path of file on server
+     * @param expected the version number expected, -1 for any
+     * @return True if succeeded, otherwise return false
+     */
+    private static boolean unlink(String path, int expected) {
+        if (is_meta(path))
+            return false;
         // the full path
-        path = root_path + '/' + path;
+        path = resolve(root_path + '/' + path);
         File file = new File(path);
-        try {
-            // store the file path and its sync object mapping
-            sync_map.putIfAbsent(file.getCanonicalPath(), new Object());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
         // synchronization for multi-threads to unlink the file in order
-        synchronized (sync_map.get(path)) {
-            if (version_map.containsKey(path))
-                version_map.remove(path);
-            return file.exists() && file.delete();
+        StampedLock lock = locks.of(path);
+        long stamp = lock.writeLock();
+        try {
+            if (expected != -1 && get_version(path) != expected)
+                return false;
+            ChunkStore.Blob blob = chunk_store != null 
+                ? chunk_store.unlink(path) : null;
+            if (blob == null && !file.exists())
+                return false;
+            // readers of the last version may still be fetching it
+            if (blob != null) {
+                retire(path, get_version(path), blob);
+            } else {
+                try {
+                    retire(path, get_version(path));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            set_version(path, 0);
+            boolean deleted = blob != null || file.delete();
+            metadata.update(path);
+            invalidate(path);
+            return deleted;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -213,9 +886,129 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
      * @param path relative path of file on server
      * @return The latest version number of file
      */
-    private int get_version(String path) throws RemoteException {
-        version_map.putIfAbsent(path, 1);
-        return version_map.get(path);
+    private static int get_version(String path) {
+        // a file the server never wrote is at its first version, and a 
+        // file that does not exist yet will be created at it
+        long stamp = version_lock.tryOptimisticRead();
+        try {
+            int version = lookup_version(path);
+            if (version_lock.validate(stamp))
+                return version;
+        } catch (RuntimeException e) {
+            // a torn read of tables being resized, retry under the lock
+        }
+        stamp = version_lock.readLock();
+        try {
+            return lookup_version(path);
+        } finally {
+            version_lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Look up the latest version number of file in the tables
+     *
+     * @param path full path of file
+     * @return The latest version number of file
+     */
+    private static int lookup_version(String path) {
+        int id = paths.id(path);
+        return id == -1 ? 1 : versions.get(id, 1);
+    }
+
+    /**
+     * Set the latest version number of file
+     *
+     * @param path full path of file
+     * @param version the version number, 0 to forget the file
+     */
+    private static void set_version(String path, int version) {
+        boolean snapshot_due = false;
+        long stamp = version_lock.writeLock();
+        try {
+            apply_version(path, version);
+            change_log.record(path.substring(root_path.length() + 1), 
+                version);
+            // logged in the order of the changes
+            if (version_log != null)
+                snapshot_due = version_log.append(
+                    path.substring(root_path.length()), version);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            version_lock.unlockWrite(stamp);
+        }
+        if (snapshot_due)
+            reaper.execute(Server::snapshot_versions);
+        // queued under the lock of the path, so in the order of commits
+        if (replicator != null)
+            replicator.changed(path, version);
+    }
+
+    /**
+     * Set the latest version number of file in the tables, the caller 
+     * holds the version lock
+     *
+     * @param path full path of file
+     * @param version the version number, 0 to forget the file
+     */
+    private static void apply_version(String path, int version) {
+        if (version > 0) {
+            versions.put(paths.intern(path), version);
+            return;
+        }
+        int id = paths.id(path);
+        if (id != -1) {
+            versions.remove(id);
+            paths.release(path);
+        }
+    }
+
+    /**
+     * Write a snapshot of the version numbers so the log can start over
+     */
+    private static void snapshot_versions() {
+        String[] names;
+        int[] values;
+        int count = 0;
+        long stamp = version_lock.writeLock();
+        try {
+            // the map is captured while later changes go to a new log
+            if (!version_log.rotate())
+                return;
+            names = new String[paths.size()];
+            values = new int[paths.size()];
+            for (int id = 0; id < paths.limit(); id++) {
+                String path = paths.path(id);
+                if (path == null)
+                    continue;
+                names[count] = path.substring(root_path.length());
+                values[count++] = versions.get(id, 1);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            version_lock.unlockWrite(stamp);
+        }
+        try {
+            version_log.write_snapshot(names, values, count);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Force the version log, so durable commits keep their versions
+     */
+    private static void sync_versions() {
+        if (version_log == null)
+            return;
+        try {
+            version_log.force();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -226,29 +1019,288 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
      */
     @Override
     public long[] get_info(String path) throws RemoteException {
+        if (is_meta(path))
+            return new long[]{0, 0, 0, 1, MetadataIndex.UNKNOWN};
+
+        path = resolve(root_path + '/' + path);
+        // size and version are read together, retried under the shared 
+        // lock only if a commit of the path ran meanwhile
+        StampedLock lock = locks.of(path);
+        long stamp = lock.tryOptimisticRead();
+        long[] info = info(path);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                info = info(path);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Get information of file from the index
+     *
+     * @param path full path of file
+     * @return An array of file information
+     */
+    private static long[] info(String path) {
+        // whether the file exists and whether it is a directory, and the 
+        // file size, all from the index
+        MetadataIndex.Meta meta = metadata.get(path);
+        // the latest version number of the file
+        int file_ver = get_version(path);
+        ChunkStore.Blob blob = chunk_store != null 
+            ? chunk_store.get(path) : null;
+        if (blob != null)
+            return new long[]{1, 0, blob.length(), (long)file_ver, 
+                blob.hash};
 
-        path = root_path + '/' + path;
+        if (meta == null)
+            return new long[]{0, 0, 0, (long)file_ver, 
+                MetadataIndex.UNKNOWN};
+        // a lookup never reads the file, the hash comes later
+        if (!meta.dir && meta.hash == MetadataIndex.UNKNOWN)
+            schedule_hash(path);
+        return new long[]{1, meta.dir ? 1 : 0, meta.length, 
+            (long)file_ver, meta.hash};
+    }
+
+    /**
+     * Hash a file the server did not write in the background, lookups 
+     * report MetadataIndex.UNKNOWN until it is done
+     *
+     * @param path full path of file
+     */
+    private static void schedule_hash(String path) {
+        if (!hashing.add(path))// already being hashed
+            return;
+        CompletableFuture.runAsync(() -> {
+            try {
+                content_hash(path);
+            } finally {
+                hashing.remove(path);
+            }
+        });
+    }
+
+    /**
+     * Get the content hash of a file, hashed on first use if the server 
+     * did not write it
+     *
+     * @param path full path of file
+     * @return The CRC32C of the file, or MetadataIndex.UNKNOWN if it is 
+     * not a readable file
+     */
+    private static long content_hash(String path) {
+        MetadataIndex.Meta meta = metadata.get(path);
+        if (meta == null || meta.dir)
+            return MetadataIndex.UNKNOWN;
+        if (meta.hash != MetadataIndex.UNKNOWN)
+            return meta.hash;
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), 
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            while (channel.read(buffer) > 0) {
+                crc.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            return MetadataIndex.UNKNOWN;
+        }
+        // dropped if the file changed meanwhile
+        metadata.set_hash(path, meta, crc.getValue());
+        return crc.getValue();
+    }
+
+    /**
+     * Check whether a staged file has the content of the live file
+     *
+     * @param path full path of file
+     * @param stage the staged content
+     * @param hash content hash of the staged file
+     * @return True if the content is the same
+     */
+    private static boolean same_content(String path, File stage, long hash) 
+        throws IOException {
         File file = new File(path);
+        if (!file.isFile() || file.length() != stage.length() 
+            || content_hash(path) != hash)
+            return false;
+        // equal hashes are confirmed, a collision must not drop a write
+        return Files.mismatch(file.toPath(), stage.toPath()) == -1;
+    }
+
+    /**
+     * Drop the cached blocks, the manifest and the chunk index of a file
+     *
+     * @param path full path of file
+     */
+    private static void invalidate(String path) {
+        if (chunk_cache != null)
+            chunk_cache.invalidate(path);
+        synchronized (manifests) {
+            manifests.remove(path);
+        }
+        synchronized (chunk_indexes) {
+            chunk_indexes.remove(path);
+        }
+    }
+
+    /**
+     * Hash the blocks of a published version in the background
+     *
+     * @param path full path of file
+     * @param version version number of file
+     * @param file the published file
+     */
+    private static void schedule_manifest(String path, int version, 
+            File file) {
+        TransferSession session;
         try {
-            path = file.getCanonicalPath();
+            // opened now, later commits replace the content
+            session = chunk_store != null 
+                ? new TransferSession(path, version, 
+                    chunk_store.open(chunk_store.get(path)))
+                : new TransferSession(path, file, version, FileChannel.open(
+                    file.toPath(), StandardOpenOption.READ));
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
-        // whether the file exists and whether it is a directory
-        long  file_exist, file_dir;
-        // the file size
-        long file_len =  get_file_len(path);
-        // the latest version number of the file
-        int file_ver = get_version(path);
+        put_manifest(path, version, CompletableFuture.supplyAsync(() -> {
+            try {
+                return BlockManifest.compute(session, session.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                session.close();
+            }
+        }));
+    }
+
+    /**
+     * Remember the manifest of a version, replacing older versions
+     *
+     * @param path full path of file
+     * @param version version number of file
+     * @param hashes the block hashes, possibly still being computed
+     */
+    private static void put_manifest(String path, int version, 
+            CompletableFuture<byte[]> hashes) {
+        Manifest manifest = new Manifest();
+        manifest.version = version;
+        manifest.hashes = hashes;
+        synchronized (manifests) {
+            Manifest old = manifests.get(path);
+            if (old == null || old.version <= version)
+                manifests.put(path, manifest);
+        }
+    }
+
+    /**
+     * Manifest class, the block hashes of one version of a file
+     */
+    private static class Manifest {
+        // version number of file
+        int version;
+        // the block hashes
+        CompletableFuture<byte[]> hashes;
+    }
+
+    /**
+     * Link the live file to the snapshot of its version and schedule the 
+     * snapshot for deletion once its readers are done
+     *
+     * @param path full path of file
+     * @param version version number of the live file
+     */
+    private static void retire(String path, int version) throws IOException {
+        File file = new File(path);
+        if (version < 1 || !file.isFile())
+            return;
+        File snapshot = snapshot_file(path, version);
+        snapshot.getParentFile().mkdirs();
+        if (!snapshot.exists())
+            Files.createLink(snapshot.toPath(), file.toPath());
+        reaper.schedule(() -> snapshot.delete(), SNAPSHOT_RETENTION, 
+            TimeUnit.SECONDS);
+    }
 
-        if(file.exists())
-            file_exist = 1;
-        else
-            file_exist = 0;
-        if(file.isDirectory())
-            file_dir = 1;
-        else
-            file_dir = 0;
-        return new long[]{file_exist, file_dir, file_len, (long)file_ver};
+    /**
+     * Keep a superseded blob for its readers and schedule it for release
+     *
+     * @param path full path of file
+     * @param version version number of the blob
+     * @param blob the blob
+     */
+    private static void retire(String path, int version, 
+            ChunkStore.Blob blob) {
+        chunk_store.keep(path, version, blob);
+        reaper.schedule(() -> chunk_store.drop(path, version), 
+            SNAPSHOT_RETENTION, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the snapshot file of a version
+     *
+     * @param path full path of file
+     * @param version version number of file
+     * @return The snapshot file
+     */
+    private static File snapshot_file(String path, int version) {
+        String relative = path.substring(root_path.length());
+        return new File(root_path + '/' + META_DIR + "/versions" + relative
+            + "@" + version);
+    }
+
+    /**
+     * Get the staging file of an upload
+     *
+     * @param txn id of the upload
+     * @return The staging file
+     */
+    private static File stage_file(long txn) {
+        File dir = new File(root_path + '/' + META_DIR + "/stage");
+        dir.mkdirs();
+        return new File(dir, Long.toHexString(txn));
+    }
+
+    /**
+     * Check whether a client path points into the server metadata
+     *
+     * @param path relative path of file on server
+     * @return True if it is reserved for the server
+     */
+    private static boolean is_meta(String path) {
+        String full = resolve(root_path + '/' + path);
+        return full.equals(root_path + '/' + META_DIR)
+            || full.startsWith(root_path + '/' + META_DIR + '/');
+    }
+
+    /**
+     * Get the normalized form of a full path, resolved lexically so no 
+     * filesystem call is needed
+     *
+     * @param path the full path
+     * @return The normalized path
+     */
+    private static String resolve(String path) {
+        return Paths.get(path).normalize().toString();
+    }
+
+    /**
+     * Delete a directory tree
+     *
+     * @param file root of the tree
+     */
+    private static void delete_tree(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete_tree(child);
+        file.delete();
     }
 }
@@ -6,11 +6,26 @@ import java.rmi.RemoteException;
  */
 public interface ServerInterface extends Remote {
     
-    byte[] get_file(String path, int len, long seek) throws RemoteException;
+    int negotiate(int codecs) throws RemoteException;
+    long begin_download(String path, int version) throws RemoteException;
+    byte[] get_chunk(long id, int len, long seek, int codec) 
+        throws RemoteException;
+    void end_download(long id) throws RemoteException;
+    byte[] get_manifest(String path, int version) throws RemoteException;
     void create_file(String path) throws RemoteException;
-    int write_to_file(String path, byte[] buf, long seek, boolean over) 
-    throws RemoteException;
+    long begin_upload(String path, long id) throws RemoteException;
+    boolean put_chunk(long id, byte[] buf, long seek, int codec, 
+    int raw_len) throws RemoteException;
+    byte[] reuse_chunks(long id, byte[] hashes, int[] lengths) 
+        throws RemoteException;
+    int commit_upload(long id) throws RemoteException;
+    void abort_upload(long id) throws RemoteException;
     boolean unlink_file(String path) throws RemoteException;
+    boolean unlink_if_version(String path, int version)
+        throws RemoteException;
     long[] get_info(String path) throws RemoteException;
+    byte[] get_changes(long since) throws RemoteException;
+    String[] list_files() throws RemoteException;
+    int restore_version(String path, int version) throws RemoteException;
     
 }
\ No newline at end of file
@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ShardedServer Class, spreads the namespace over several servers, each
+ * call goes to the shard of its path on a consistent hash ring, download
+ * ids carry their shard and upload ids are mapped to theirs, a path
+ * missing on its shard is only looked up on the others if it is a known
+ * directory or a rebalance is in progress
+ */
+public class ShardedServer implements ServerInterface {
+    // the shards, in ring order
+    private final ServerInterface[] servers;
+    // placement of the paths on the shards
+    private final HashRing ring;
+    // upload id and shard mapping
+    private final Map<Long, Integer> uploads = new ConcurrentHashMap<>();
+    // directories of the files created through this proxy
+    private final Set<String> dirs = ConcurrentHashMap.newKeySet();
+    // whether a rebalance is in progress, any directory may then be
+    // anywhere
+    private final boolean rebalancing;
+    // sequence number of the last merged change batch
+    private long sequence = System.currentTimeMillis() * 1000;
+    // sequence number of the last change seen on each shard
+    private long[] cursors;
+
+    /**
+     * Constructor, connects to every shard
+     *
+     * @param shards addresses of the shards, as host:port
+     * @param vnodes number of virtual nodes of each shard
+     * @param rebalancing whether a rebalance is in progress
+     */
+    public ShardedServer(String[] shards, int vnodes, boolean rebalancing)
+        throws IOException, NotBoundException {
+        this.rebalancing = rebalancing;
+        ring = new HashRing(shards, vnodes);
+        servers = new ServerInterface[shards.length];
+        for (int i = 0; i < shards.length; i++)
+            servers[i] = connect(shards[i]);
+        cursors = new long[shards.length];
+    }
+
+    /**
+     * Connect to a server
+     *
+     * @param address address of the server, as host:port
+     * @return The server interface
+     */
+    static ServerInterface connect(String address)
+        throws IOException, NotBoundException {
+        return (ServerInterface)Naming.lookup("//" + address + "/server");
+    }
+
+    /**
+     * Get the shard of a path
+     *
+     * @param path relative path of file
+     * @return The server of the shard
+     */
+    private ServerInterface of(String path) {
+        return servers[ring.shard(path)];
+    }
+
+    /**
+     * Get the shard of an upload
+     *
+     * @param id upload id
+     * @return The server of the shard, or null if the upload is unknown
+     */
+    private ServerInterface upload(long id) {
+        Integer shard = uploads.get(id);
+        return shard != null ? servers[shard] : null;
+    }
+
+    @Override
+    public int negotiate(int codecs) throws RemoteException {
+        // only codecs every shard supports
+        for (ServerInterface server : servers)
+            codecs &= server.negotiate(codecs);
+        return codecs;
+    }
+
+    @Override
+    public long begin_download(String path, int version)
+        throws RemoteException {
+        int shard = ring.shard(path);
+        long id = servers[shard].begin_download(path, version);
+        return id < 0 ? id : id * servers.length + shard;
+    }
+
+    @Override
+    public byte[] get_chunk(long id, int len, long seek, int codec)
+        throws RemoteException {
+        return servers[(int)(id % servers.length)].get_chunk(
+            id / servers.length, len, seek, codec);
+    }
+
+    @Override
+    public void end_download(long id) throws RemoteException {
+        servers[(int)(id % servers.length)].end_download(
+            id / servers.length);
+    }
+
+    @Override
+    public byte[] get_manifest(String path, int version)
+        throws RemoteException {
+        return of(path).get_manifest(path, version);
+    }
+
+    /**
+     * Remember the directories of a file, they exist on its shard
+     *
+     * @param path relative path of file
+     */
+    private void add_dirs(String path) {
+        for (int i = path.lastIndexOf('/'); i > 0; 
+                i = path.lastIndexOf('/', i - 1))
+            if (!dirs.add(path.substring(0, i)))
+                break;// the rest are known already
+    }
+
+    @Override
+    public void create_file(String path) throws RemoteException {
+        of(path).create_file(path);
+        add_dirs(path);
+    }
+
+    @Override
+    public long begin_upload(String path, long id) throws RemoteException {
+        add_dirs(path);
+        int shard = ring.shard(path);
+        uploads.put(id, shard);
+        return servers[shard].begin_upload(path, id);
+    }
+
+    @Override
+    public boolean put_chunk(long id, byte[] buf, long seek, int codec,
+            int raw_len) throws RemoteException {
+        ServerInterface server = upload(id);
+        return server != null
+            && server.put_chunk(id, buf, seek, codec, raw_len);
+    }
+
+    @Override
+    public byte[] reuse_chunks(long id, byte[] hashes, int[] lengths)
+        throws RemoteException {
+        ServerInterface server = upload(id);
+        return server != null ? server.reuse_chunks(id, hashes, lengths)
+            : null;
+    }
+
+    @Override
+    public int commit_upload(long id) throws RemoteException {
+        ServerInterface server = upload(id);
+        if (server == null)
+            return -1;
+        int version = server.commit_upload(id);
+        uploads.remove(id);
+        return version;
+    }
+
+    @Override
+    public void abort_upload(long id) throws RemoteException {
+        Integer shard = uploads.remove(id);
+        if (shard != null)
+            servers[shard].abort_upload(id);
+    }
+
+    @Override
+    public boolean unlink_file(String path) throws RemoteException {
+        return of(path).unlink_file(path);
+    }
+
+    @Override
+    public boolean unlink_if_version(String path, int version)
+        throws RemoteException {
+        return of(path).unlink_if_version(path, version);
+    }
+
+    @Override
+    public long[] get_info(String path) throws RemoteException {
+        int shard = ring.shard(path);
+        long[] info = servers[shard].get_info(path);
+        // a missing path costs one call, unless it is a known directory
+        if (info[0] == 1 || (!rebalancing && !dirs.contains(path)))
+            return info;
+        // a directory exists on any shard holding a file under it
+        for (int i = 0; i < servers.length; i++) {
+            if (i == shard)
+                continue;
+            long[] other = servers[i].get_info(path);
+            if (other[0] == 1 && other[1] == 1)
+                return other;
+        }
+        return info;
+    }
+
+    /**
+     * Get the changes of every shard after a sequence number of this
+     * merged feed, a number of another feed restarts every shard
+     *
+     * @param since the last sequence number seen, -1 for none
+     * @return The encoded ChangeLog batch
+     */
+    @Override
+    public synchronized byte[] get_changes(long since)
+        throws RemoteException {
+        long[] next = cursors.clone();
+        if (since != sequence)// another feed, every shard starts over
+            Arrays.fill(next, -1);
+        boolean complete = true;
+        List<String> paths = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        for (int i = 0; i < servers.length; i++) {
+            ChangeLog.Batch batch =
+                new ChangeLog.Batch(servers[i].get_changes(next[i]));
+            complete &= batch.complete;
+            next[i] = batch.sequence;
+            for (int j = 0; j < batch.paths.length; j++) {
+                paths.add(batch.paths[j]);
+                versions.add(batch.versions[j]);
+            }
+        }
+        // the cursors only move once every shard answered
+        cursors = next;
+        sequence++;
+        int[] values = new int[versions.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = versions.get(i);
+        return ChangeLog.encode(sequence, complete,
+            paths.toArray(new String[0]), values, values.length);
+    }
+
+    @Override
+    public String[] list_files() throws RemoteException {
+        List<String> files = new ArrayList<>();
+        for (ServerInterface server : servers)
+            for (String file : server.list_files())
+                files.add(file);
+        return files.toArray(new String[0]);
+    }
+
+    @Override
+    public int restore_version(String path, int version)
+        throws RemoteException {
+        return of(path).restore_version(path, version);
+    }
+}
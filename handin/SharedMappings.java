@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SharedMappings Class, one read-only memory mapping per cached read
+ * version shared by all fds reading it
+ */
+public class SharedMappings {
+    // read path and mapping mapping
+    private Map<String, Entry> entries;
+    // storage backend of the cached files
+    private CacheStore store;
+
+    /**
+     * Constructor
+     *
+     * @param store storage backend of the cached files
+     */
+    public SharedMappings(CacheStore store) {
+        entries = new HashMap<>();
+        this.store = store;
+    }
+
+    /**
+     * Entry class, one mapped cached version
+     */
+    private static class Entry {
+        // the mapping of the whole file
+        ByteBuffer map;
+        // number of fds reading the mapping
+        int refs;
+        // whether the version was evicted while still in use
+        boolean removed;
+    }
+
+    /**
+     * Get a read view of a cached version, mapping it on first use
+     *
+     * @param path read path of file
+     * @return A read-only view of the file, or null if it cannot be mapped
+     */
+    public synchronized ByteBuffer acquire(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.removed) {// a stale mapping is replaced
+            ByteBuffer map;
+            try {
+                map = store.map(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            if (map == null)
+                return null;
+            Entry old = entry;
+            entry = new Entry();
+            entry.map = map;
+            // releases do not tell the mappings apart, the readers of the
+            // old one are counted here, it is unmapped when collected
+            if (old != null)
+                entry.refs = old.refs;
+            entries.put(path, entry);
+        }
+        entry.refs++;
+        return entry.map.asReadOnlyBuffer();
+    }
+
+    /**
+     * Unpin a mapping after its fd is closed
+     *
+     * @param path read path of file
+     */
+    public synchronized void release(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null)
+            return;
+        entry.refs--;
+        if (entry.removed && entry.refs <= 0)
+            entries.remove(path);
+    }
+
+    /**
+     * Drop the mapping of an evicted version
+     *
+     * @param path read path of file
+     */
+    public synchronized void remove(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null)
+            return;
+        if (entry.refs <= 0)
+            entries.remove(path);
+        else
+            entry.removed = true;
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.rmi.RemoteException;
+
+/**
+ * StreamFile Class, read a file that does not fit in the cache directly
+ * from the server by range through a small bounded buffer
+ */
+public class StreamFile {
+    // size of the per fd read buffer
+    static final int BUFFER_SIZE = 1 << 16;
+    // the server interface
+    private ServerInterface server;
+    // relative path of file on server
+    private String relative_path;
+    // version number of file being read
+    private int version;
+    // download session id, -1 until the first fetch
+    private long session;
+    // size of the file
+    private long size;
+    // current file position
+    private long pos;
+    // buffered bytes of the file
+    private byte[] buffer;
+    // file position of the first buffered byte
+    private long buffer_start;
+    // number of valid buffered bytes
+    private int buffer_len;
+
+    /**
+     * Constructor
+     *
+     * @param server interface for communication with server
+     * @param relative_path relative path of file on server
+     * @param version version number of file to read
+     * @param size the size of file
+     */
+    public StreamFile(ServerInterface server, String relative_path, 
+            int version, long size) {
+        this.server = server;
+        this.relative_path = relative_path;
+        this.version = version;
+        this.session = -1;
+        this.size = size;
+        this.pos = 0;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.buffer_start = 0;
+        this.buffer_len = 0;
+    }
+
+    /**
+     * Read from the current position
+     *
+     * @param buf byte array of data to read
+     * @return Return byte number read, 0 at the end of file
+     */
+    public long read(byte[] buf) throws IOException {
+        if (pos >= size)
+            return 0;
+        int len = (int)Math.min(buf.length, size - pos);
+        if (len >= BUFFER_SIZE) {// large read, go to the server directly
+            byte[] bytes = fetch(len, pos);
+            System.arraycopy(bytes, 0, buf, 0, len);
+            pos += len;
+            return len;
+        }
+        int done = 0;
+        while (done < len) {
+            if (pos < buffer_start || pos >= buffer_start + buffer_len) {
+                // refill the buffer from the current position
+                buffer_start = pos;
+                buffer_len = (int)Math.min(BUFFER_SIZE, size - pos);
+                buffer = fetch(buffer_len, pos);
+            }
+            int off = (int)(pos - buffer_start);
+            int n = Math.min(len - done, buffer_len - off);
+            System.arraycopy(buffer, off, buf, done, n);
+            done += n;
+            pos += n;
+        }
+        return done;
+    }
+
+    /**
+     * Move the current position
+     *
+     * @param pos new file position
+     */
+    public void seek(long pos) throws IOException {
+        if (pos < 0)
+            throw new IOException("Negative seek offset");
+        this.pos = pos;
+    }
+
+    /**
+     * Get the current position
+     *
+     * @return current file position
+     */
+    public long getFilePointer() {
+        return pos;
+    }
+
+    /**
+     * Get the size of file
+     *
+     * @return size of the file
+     */
+    public long length() {
+        return size;
+    }
+
+    /**
+     * Fetch a range of the version being read
+     *
+     * @param len length of the range
+     * @param off file position of the range
+     * @return The bytes of the range
+     */
+    private byte[] fetch(int len, long off) throws IOException {
+        byte[] bytes = null;
+        if (session != -1)
+            bytes = Proxy.compression.fetch(server, relative_path, session, 
+                len, off);
+        if (bytes == null) {// no session yet, or it timed out while idle
+            session = server.begin_download(relative_path, version);
+            if (session == -1)// the version was superseded and reaped
+                throw new RemoteException("Version no longer on server");
+            bytes = Proxy.compression.fetch(server, relative_path, session, 
+                len, off);
+        }
+        if (bytes == null)
+            throw new RemoteException("Download session lost");
+        return bytes;
+    }
+
+    /**
+     * End the download session
+     */
+    public void close() throws RemoteException {
+        if (session != -1)
+            server.end_download(session);
+        session = -1;
+    }
+}
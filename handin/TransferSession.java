@@ -0,0 +1,178 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32C;
+
+/**
+ * TransferSession Class, the per-file state of an upload or download
+ * kept on the server between chunk calls
+ */
+public class TransferSession implements ContentReader {
+    // full path of file
+    final String path;
+    // the file the chunks go to or come from, null for stored blobs
+    final File file;
+    // version number being downloaded, 0 for uploads
+    final int version;
+    // channel of the file, chunks use positional I/O, null for blobs
+    final FileChannel channel;
+    // reader of a blob in the chunk store, null for plain files
+    final ChunkStore.Reader blob;
+    // identity of the content for cached blocks, the file itself since 
+    // snapshots link to it and a version number comes back after an unlink
+    final Object identity;
+    // time of the last call in milliseconds
+    volatile long last_used;
+    // hash of the staged prefix, uploads only
+    private final CRC32C crc = new CRC32C();
+    // length of the staged prefix already hashed
+    private long hashed;
+
+    /**
+     * Constructor
+     *
+     * @param path full path of file
+     * @param file the file the chunks go to or come from
+     * @param version version number being downloaded, 0 for uploads
+     * @param channel channel of the file
+     */
+    TransferSession(String path, File file, int version, 
+            FileChannel channel) {
+        this.path = path;
+        this.file = file;
+        this.version = version;
+        this.channel = channel;
+        this.blob = null;
+        this.identity = identity(file);
+        touch();
+    }
+
+    /**
+     * Constructor, for a download of a blob in the chunk store
+     *
+     * @param path full path of file
+     * @param version version number being downloaded
+     * @param blob reader of the blob
+     */
+    TransferSession(String path, int version, ChunkStore.Reader blob) {
+        this.path = path;
+        this.file = null;
+        this.version = version;
+        this.channel = null;
+        this.blob = blob;
+        // blocks of a blob are keyed by its content id alone
+        this.identity = 0;
+        touch();
+    }
+
+    /**
+     * Get the identity of a file, shared by the links to it
+     *
+     * @param file the file
+     * @return The file key, or a new object if there is none, so the 
+     * blocks are not shared
+     */
+    private static Object identity(File file) {
+        Object key = null;
+        try {
+            key = Files.readAttributes(file.toPath(), 
+                BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            // gone already, the channel still reads it
+        }
+        return key != null ? key : new Object();
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long pos) throws IOException {
+        return blob != null ? blob.read(dst, pos) : channel.read(dst, pos);
+    }
+
+    /**
+     * Get the size of the file being transferred
+     *
+     * @return The size of file
+     */
+    long size() throws IOException {
+        return blob != null ? blob.length() : channel.size();
+    }
+
+    /**
+     * Get the key of the cached blocks of the download, blobs with the 
+     * same content share their blocks across paths
+     *
+     * @return The full path of file, or the content id of a blob
+     */
+    String cache_key() {
+        return blob != null ? blob.id() : path;
+    }
+
+    /**
+     * Mark the session as used now
+     */
+    void touch() {
+        last_used = System.currentTimeMillis();
+    }
+
+    /**
+     * Check whether the session was abandoned
+     *
+     * @param timeout milliseconds a session may stay idle
+     * @return True if idle for longer than the timeout
+     */
+    boolean expired(long timeout) {
+        return System.currentTimeMillis() - last_used > timeout;
+    }
+
+    /**
+     * Hash a chunk written to the stage, chunks arrive in order so the 
+     * hash is mostly computed as they do
+     *
+     * @param buf byte array of the chunk
+     * @param off offset of the chunk in the array
+     * @param len length of the chunk
+     * @param pos file position of the chunk
+     */
+    synchronized void hash(byte[] buf, int off, int len, long pos) {
+        if (pos > hashed || pos + len <= hashed)
+            return;// left for content_hash, or already hashed
+        int skip = (int)(hashed - pos);
+        crc.update(buf, off + skip, len - skip);
+        hashed = pos + len;
+    }
+
+    /**
+     * Finish the content hash of the stage, chunks staged out of order 
+     * are read back
+     *
+     * @return The CRC32C of the staged file
+     */
+    synchronized long content_hash() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int n;
+        while ((n = channel.read(buffer, hashed)) > 0) {
+            crc.update(buffer.array(), 0, n);
+            hashed += n;
+            buffer.clear();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Close the channel quietly
+     */
+    void close() {
+        if (blob != null) {
+            blob.close();
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
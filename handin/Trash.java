@@ -0,0 +1,71 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trash Class, deletes files asynchronously, victims are renamed into a
+ * trash directory and unlinked in batches by a background thread
+ */
+public class Trash {
+    // largest number of files deleted in one batch
+    private static final int BATCH_SIZE = 256;
+    // directory holding the renamed victims
+    private File dir;
+    // victims waiting to be deleted
+    private LinkedBlockingQueue<File> queue;
+    // counter for unique trash names
+    private AtomicLong counter;
+
+    /**
+     * Constructor
+     *
+     * @param dir directory holding the renamed victims
+     */
+    public Trash(File dir) {
+        this.dir = dir;
+        queue = new LinkedBlockingQueue<>();
+        counter = new AtomicLong();
+        dir.mkdirs();
+        // victims left by an earlier run
+        File[] old = dir.listFiles();
+        if (old != null)
+            for (File file : old)
+                queue.offer(file);
+        Thread deleter = new Thread(this::delete_loop, "trash-deleter");
+        deleter.setDaemon(true);
+        deleter.start();
+    }
+
+    /**
+     * Move a file out of the way and delete it later
+     *
+     * @param file the file to delete
+     */
+    public void discard(File file) {
+        File target = new File(dir, counter.incrementAndGet() + "");
+        if (file.renameTo(target))
+            queue.offer(target);
+        else // not renamable, e.g. already gone
+            file.delete();
+    }
+
+    /**
+     * Delete queued victims in batches, forever
+     */
+    private void delete_loop() {
+        List<File> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            for (File file : batch)
+                file.delete();
+            batch.clear();
+        }
+    }
+}
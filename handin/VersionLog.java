@@ -0,0 +1,263 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * VersionLog Class, keeps the version numbers of the server across
+ * restarts, every change is appended to a write-ahead log and the whole
+ * map is written to a snapshot from time to time so the log stays short,
+ * a restart maps the snapshot and replays the log after it
+ */
+public class VersionLog {
+    // first int of a snapshot
+    private static final int MAGIC = 0x5645524d;
+    // the log being appended to
+    private File log_file;
+    // the log being folded into a snapshot, or left by a crash
+    private File old_file;
+    // the last snapshot
+    private File snapshot_file;
+    // channel of the log
+    private FileChannel log;
+    // number of changes after which a snapshot is due
+    private int snapshot_every;
+    // number of changes since the last rotation
+    private int appended;
+    // whether a snapshot is being written
+    private boolean snapshotting;
+
+    /**
+     * Constructor
+     *
+     * @param dir directory of the log and the snapshot
+     * @param snapshot_every number of changes after which a snapshot is due
+     */
+    public VersionLog(File dir, int snapshot_every) {
+        dir.mkdirs();
+        log_file = new File(dir, "version.log");
+        old_file = new File(dir, "version.log.old");
+        snapshot_file = new File(dir, "version.snapshot");
+        this.snapshot_every = Math.max(1, snapshot_every);
+    }
+
+    /**
+     * Load the versions of the snapshot, then of the logs, and open the
+     * log for appending, a torn record ends a log
+     *
+     * @param apply called with each relative path and version in order,
+     * version 0 forgets the path
+     */
+    public synchronized void load(ObjIntConsumer<String> apply)
+        throws IOException {
+        if (snapshot_file.isFile()) {
+            try (FileChannel channel = FileChannel.open(
+                    snapshot_file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                load_snapshot(map, apply);
+            }
+        }
+        replay(old_file, apply);
+        appended = replay(log_file, apply);
+        log = FileChannel.open(log_file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Append a change to the log
+     *
+     * @param path relative path of file
+     * @param version the version number, 0 to forget the file
+     * @return True if a snapshot is due
+     */
+    public synchronized boolean append(String path, int version)
+        throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(name.length + 12);
+        record.putInt(name.length).put(name).putInt(version);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int)crc.getValue());
+        record.flip();
+        while (record.hasRemaining())
+            log.write(record);
+        return ++appended >= snapshot_every && !snapshotting;
+    }
+
+    /**
+     * Force the log to disk
+     */
+    public synchronized void force() throws IOException {
+        log.force(false);
+    }
+
+    /**
+     * Start a snapshot, the changes so far move to the old log and later
+     * changes go to a new one, the caller captures the map meanwhile
+     *
+     * @return True if started, false if a snapshot is being written
+     */
+    public synchronized boolean rotate() throws IOException {
+        if (snapshotting)
+            return false;
+        log.close();
+        try {
+            if (old_file.exists()) {// left by a crash, keep both in order
+                try (FileChannel old = FileChannel.open(old_file.toPath(),
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                        FileChannel tail = FileChannel.open(
+                        log_file.toPath(), StandardOpenOption.READ)) {
+                    long pos = 0;
+                    while (pos < tail.size())
+                        pos += tail.transferTo(pos, tail.size() - pos, old);
+                    old.force(false);
+                }
+                log_file.delete();
+            } else {
+                Files.move(log_file.toPath(), old_file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {// appends go on, to the same log if this failed
+            log = FileChannel.open(log_file.toPath(), 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+                StandardOpenOption.APPEND);
+        }
+        snapshotting = true;
+        appended = 0;
+        return true;
+    }
+
+    /**
+     * Finish a snapshot of the map captured at the rotation, the old log
+     * is dropped once the snapshot is durable
+     *
+     * @param paths relative paths of files
+     * @param versions version numbers of the paths
+     * @param count number of paths
+     */
+    public void write_snapshot(String[] paths, int[] versions, int count)
+        throws IOException {
+        try {
+            File temp = new File(snapshot_file.getPath() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                CRC32C crc = new CRC32C();
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                buffer.putInt(MAGIC).putInt(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] name = paths[i].getBytes(StandardCharsets.UTF_8);
+                    if (buffer.remaining() < name.length + 8)
+                        flush(channel, buffer, crc);
+                    if (buffer.remaining() < name.length + 8)// a long path
+                        buffer = ByteBuffer.allocate(name.length + 8);
+                    buffer.putInt(name.length).put(name).putInt(versions[i]);
+                }
+                flush(channel, buffer, crc);
+                buffer.putInt((int)crc.getValue()).flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(false);
+            }
+            Files.move(temp.toPath(), snapshot_file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+            old_file.delete();
+        } finally {
+            synchronized (this) {
+                snapshotting = false;
+            }
+        }
+    }
+
+    /**
+     * Write out a buffer of a snapshot
+     *
+     * @param channel channel of the snapshot
+     * @param buffer the buffer, cleared afterwards
+     * @param crc checksum of the snapshot so far
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer,
+            CRC32C crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Load the versions of a mapped snapshot
+     *
+     * @param map the snapshot
+     * @param apply called with each relative path and version
+     */
+    private static void load_snapshot(ByteBuffer map,
+            ObjIntConsumer<String> apply) throws IOException {
+        if (map.limit() < 12 || map.getInt(0) != MAGIC)
+            throw new IOException("Bad version snapshot");
+        CRC32C crc = new CRC32C();
+        crc.update(map.duplicate().limit(map.limit() - 4));
+        if ((int)crc.getValue() != map.getInt(map.limit() - 4))
+            throw new IOException("Bad version snapshot");
+        map.position(4);
+        int count = map.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[map.getInt()];
+            map.get(name);
+            apply.accept(new String(name, StandardCharsets.UTF_8),
+                map.getInt());
+        }
+    }
+
+    /**
+     * Replay the changes of a log, a torn or corrupt record ends the log
+     * and is cut off
+     *
+     * @param file the log
+     * @param apply called with each relative path and version
+     * @return The number of changes replayed
+     */
+    private static int replay(File file, ObjIntConsumer<String> apply)
+        throws IOException {
+        if (!file.isFile())
+            return 0;
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer log = ByteBuffer.wrap(bytes);
+        int count = 0;
+        while (log.remaining() >= 4) {
+            int start = log.position();
+            int length = log.getInt();
+            if (length < 0 || log.remaining() < (long)length + 8) {
+                log.position(start);
+                break;
+            }
+            byte[] name = new byte[length];
+            log.get(name);
+            int version = log.getInt();
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, start, length + 8);
+            if ((int)crc.getValue() != log.getInt()) {
+                log.position(start);
+                break;
+            }
+            apply.accept(new String(name, StandardCharsets.UTF_8), version);
+            count++;
+        }
+        if (log.position() < bytes.length) {// drop the torn tail
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.WRITE)) {
+                channel.truncate(log.position());
+            }
+        }
+        return count;
+    }
+}
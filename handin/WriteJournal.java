@@ -0,0 +1,412 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * WriteJournal Class, a durable journal of pending commits on the proxy, so
+ * uploads interrupted by a crash are resumed or rolled back on restart,
+ * a writer on a base version only journals its dirty ranges and the rest
+ * is read from the base version on server when it is replayed
+ *
+ * Records are text lines appended to the journal file:
+ * B id txn base_version length pending relative_path dirty_ranges
+ * (dirty_ranges is - if the pending copy holds the whole file)
+ * P id uploaded_offset
+ * D id
+ */
+public class WriteJournal {
+    // size of the chunks copied into a pending file
+    private static final int COPY_SIZE = 1 << 20;
+    // directory holding the journal and the pending copies
+    private File dir;
+    // the journal file
+    private File log_file;
+    // channel for appending records
+    private FileChannel log;
+    // id of the next entry
+    private long next_id;
+    // entry id and unfinished entry mapping
+    private Map<Long, Entry> open;
+
+    /**
+     * Constructor, recovers unfinished entries of an earlier run
+     *
+     * @param dir directory holding the journal and the pending copies
+     */
+    public WriteJournal(File dir) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        log_file = new File(dir, "journal");
+        open = new LinkedHashMap<>();
+        next_id = 1;
+        if (log_file.exists())
+            recover();
+        log = new RandomAccessFile(log_file, "rw").getChannel();
+        log.position(log.size());
+        // pending copies no record points to are leftovers
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (!file.equals(log_file) && !referenced(file))
+                    file.delete();
+    }
+
+    /**
+     * Entry class, one pending commit
+     */
+    public static class Entry {
+        // entry id
+        long id;
+        // relative path of file on server
+        String relative_path;
+        // id of the upload on server, resuming reuses its staged chunks
+        long txn;
+        // version the writer started from
+        int base_version;
+        // size of the file to upload
+        long length;
+        // durable copy of the content to upload, sparse if ranged
+        File pending;
+        // dirty ranges as start and end pairs, null if the copy is whole
+        long[] ranges;
+        // bytes known to be uploaded
+        long progress;
+    }
+
+    /**
+     * Get the entries left unfinished by an earlier run
+     *
+     * @return The unfinished entries in commit order
+     */
+    public synchronized List<Entry> pending() {
+        return new ArrayList<>(open.values());
+    }
+
+    /**
+     * Record a commit, the content is made durable before the record, a
+     * writer with its own file is linked rather than copied, and a writer
+     * on a base version only has its dirty ranges copied
+     *
+     * @param relative_path relative path of file on server
+     * @param txn id of the upload on server
+     * @param base_version version the writer started from
+     * @param file the written file
+     * @param source the file of the writer, or null if it has none
+     * @param ranges dirty ranges as start and end pairs, or null if the
+     * whole file is new
+     * @return The journal entry
+     */
+    public Entry begin(String relative_path, long txn, int base_version, 
+            ProxyFile file, File source, long[] ranges) throws IOException {
+        Entry entry = new Entry();
+        synchronized (this) {
+            entry.id = next_id++;
+        }
+        entry.relative_path = relative_path;
+        entry.txn = txn;
+        entry.base_version = base_version;
+        entry.length = file.length();
+        entry.pending = new File(dir, "pending-" + entry.id);
+        entry.ranges = ranges;
+        boolean linked = false;
+        if (ranges == null && source != null) {
+            try {
+                Files.createLink(entry.pending.toPath(), source.toPath());
+                linked = true;
+            } catch (IOException | UnsupportedOperationException e) {
+                // another file system, copied instead
+            }
+        }
+        // copy the content and force it before it is referenced
+        try (RandomAccessFile out = new RandomAccessFile(entry.pending, "rw")) {
+            if (!linked) {
+                out.setLength(entry.length);
+                if (ranges == null)
+                    copy(file, out, 0, entry.length);
+                else
+                    for (int i = 0; i + 1 < ranges.length; i += 2)
+                        copy(file, out, ranges[i], ranges[i + 1]);
+            }
+            out.getChannel().force(true);
+        }
+        synchronized (this) {
+            append("B " + entry.id + " " + entry.txn + " "
+                + entry.base_version + " "
+                + entry.length + " " + entry.pending.getName() + " "
+                + URLEncoder.encode(relative_path, StandardCharsets.UTF_8)
+                + " " + encode(ranges), true);
+            open.put(entry.id, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Copy a range of the written file into the pending copy
+     *
+     * @param file the written file
+     * @param out the pending copy
+     * @param start first byte of the range
+     * @param end end of the range
+     */
+    private static void copy(ProxyFile file, RandomAccessFile out, 
+            long start, long end) throws IOException {
+        byte[] bytes = new byte[(int)Math.min(COPY_SIZE, end - start)];
+        for (long off = start; off < end; off += bytes.length) {
+            if (end - off < bytes.length)
+                bytes = new byte[(int)(end - off)];
+            file.seek(off);
+            file.read(bytes);
+            out.seek(off);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Open the content of an entry for upload, the ranges not journaled
+     * are read from the base version on server
+     *
+     * @param entry the journal entry
+     * @param server interface for communication with server
+     * @param base_size the size of the base version on server
+     * @return The content to upload
+     */
+    public static ProxyFile open(Entry entry, ServerInterface server, 
+            long base_size) throws IOException {
+        BufferedFile pending = 
+            new BufferedFile(new RandomAccessFile(entry.pending, "r"));
+        if (entry.ranges == null)
+            return pending;
+        return new Patched(entry, pending, new StreamFile(server, 
+            entry.relative_path, entry.base_version, base_size));
+    }
+
+    /**
+     * Patched class, the journaled dirty ranges of an entry laid over its
+     * base version on server, zero filled past the end of the base
+     */
+    private static class Patched implements ProxyFile {
+        // the journal entry
+        private final Entry entry;
+        // the pending copy holding the dirty ranges
+        private final BufferedFile pending;
+        // the base version on server
+        private final StreamFile base;
+        // current file position
+        private long pos;
+
+        Patched(Entry entry, BufferedFile pending, StreamFile base) {
+            this.entry = entry;
+            this.pending = pending;
+            this.base = base;
+        }
+
+        @Override
+        public int read(byte[] buf) throws IOException {
+            int len = (int)Math.max(0, Math.min(buf.length, 
+                entry.length - pos));
+            if (len == 0)
+                return buf.length > 0 ? -1 : 0;
+            long[] ranges = entry.ranges;
+            int i = 0;
+            int done = 0;
+            while (done < len) {
+                long at = pos + done;
+                while (i < ranges.length && ranges[i + 1] <= at)
+                    i += 2;
+                boolean dirty = i < ranges.length && ranges[i] <= at;
+                long end = dirty ? ranges[i + 1] 
+                    : i < ranges.length ? ranges[i] : entry.length;
+                byte[] part = new byte[(int)Math.min(len - done, end - at)];
+                if (dirty) {
+                    pending.seek(at);
+                    pending.read(part);
+                } else if (at < base.length()) {// past the base stays zero
+                    base.seek(at);
+                    base.read(part);
+                }
+                System.arraycopy(part, 0, buf, done, part.length);
+                done += part.length;
+            }
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public void write(byte[] buf) throws IOException {
+            throw new IOException("Journaled content is read only");
+        }
+
+        @Override
+        public void seek(long pos) {
+            this.pos = pos;
+        }
+
+        @Override
+        public long getFilePointer() {
+            return pos;
+        }
+
+        @Override
+        public long length() {
+            return entry.length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                base.close();
+            } finally {
+                pending.close();
+            }
+        }
+    }
+
+    /**
+     * Record upload progress of an entry
+     *
+     * @param entry the journal entry
+     * @param off bytes uploaded so far
+     */
+    public synchronized void progress(Entry entry, long off)
+        throws IOException {
+        entry.progress = off;
+        append("P " + entry.id + " " + off, false);
+    }
+
+    /**
+     * Finish an entry, either committed or rolled back
+     *
+     * @param entry the journal entry
+     */
+    public synchronized void done(Entry entry) throws IOException {
+        append("D " + entry.id, false);
+        open.remove(entry.id);
+        entry.pending.delete();
+        if (open.isEmpty())// nothing left to recover
+            log.truncate(0);
+    }
+
+    /**
+     * Append one record
+     *
+     * @param record the record line
+     * @param force whether the record must be durable now
+     */
+    private void append(String record, boolean force) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(
+            (record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining())
+            log.write(buffer);
+        if (force)
+            log.force(false);
+    }
+
+    /**
+     * Encode dirty ranges for a begin record
+     *
+     * @param ranges dirty ranges as start and end pairs, or null
+     * @return The ranges as start-end pairs separated by commas
+     */
+    private static String encode(long[] ranges) {
+        if (ranges == null)
+            return "-";
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i + 1 < ranges.length; i += 2) {
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(ranges[i]).append('-').append(ranges[i + 1]);
+        }
+        // no dirty range at all, only the length may have changed
+        return builder.length() > 0 ? builder.toString() : ",";
+    }
+
+    /**
+     * Decode the dirty ranges of a begin record
+     *
+     * @param field the encoded ranges
+     * @return The ranges as start and end pairs, or null if whole
+     */
+    private static long[] decode(String field) {
+        if (field.equals("-"))
+            return null;
+        String[] pairs = field.split(",");
+        long[] ranges = new long[pairs.length * 2];
+        int count = 0;
+        for (String pair : pairs) {
+            if (pair.isEmpty())
+                continue;
+            int dash = pair.indexOf('-');
+            ranges[count++] = Long.parseLong(pair.substring(0, dash));
+            ranges[count++] = Long.parseLong(pair.substring(dash + 1));
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * Read the journal of an earlier run and keep its unfinished entries
+     */
+    private void recover() throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(log_file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                try {
+                    long id = Long.parseLong(fields[1]);
+                    next_id = Math.max(next_id, id + 1);
+                    if (fields[0].equals("B") && fields.length == 8) {
+                        Entry entry = new Entry();
+                        entry.id = id;
+                        entry.txn = Long.parseLong(fields[2]);
+                        entry.base_version = Integer.parseInt(fields[3]);
+                        entry.length = Long.parseLong(fields[4]);
+                        entry.pending = new File(dir, fields[5]);
+                        entry.relative_path = URLDecoder.decode(fields[6],
+                            StandardCharsets.UTF_8);
+                        entry.ranges = decode(fields[7]);
+                        open.put(id, entry);
+                    } else if (fields[0].equals("P") && open.containsKey(id)) {
+                        open.get(id).progress = Long.parseLong(fields[2]);
+                    } else if (fields[0].equals("D")) {
+                        open.remove(id);
+                    }
+                } catch (RuntimeException e) {
+                    // a torn record at the end of the journal
+                }
+            }
+        }
+        // an entry is only usable if its pending copy is complete
+        open.values().removeIf(entry -> !entry.pending.exists()
+            || entry.pending.length() != entry.length);
+    }
+
+    /**
+     * Check whether an unfinished entry uses a file
+     *
+     * @param file the file in the journal directory
+     * @return True if an unfinished entry uses it
+     */
+    private boolean referenced(File file) {
+        for (Entry entry : open.values())
+            if (entry.pending.equals(file))
+                return true;
+        return false;
+    }
+}
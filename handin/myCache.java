@@ -1,28 +1,59 @@
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * myCache Class
  */
 public class myCache {
+    // open_cache result for files that must bypass the cache
+    public static final int STREAM = 2;
     // file path and cache node mapping
     public Map<String, Node> cache_map;
-    // cache storage head
-    private Node head;
-    // cache storage tail
-    private Node tail;
+    // file path up to its version number and its cached read versions
+    private Map<String, Set<String>> cached_versions;
+    // share of the cache given to the probationary area
+    private static final double PROBATION_RATIO = 0.1;
+    // retry interval of the reclaimer when nothing can be evicted
+    private static final long RECLAIM_RETRY = 100;
+    // smallest file worth a delta fetch against an older version
+    private static final long DELTA_MIN = 4L * BlockManifest.BLOCK_SIZE;
+    // long-term cache storage, for files accessed more than once
+    private Segment main;
+    // probationary cache storage, for files seen for the first time
+    private Segment probation;
+    // recent open frequency of files, used for admission
+    private FrequencySketch sketch;
+    // optional in-memory tier for small hot files, null if disabled
+    private MemoryTier memory;
+    // read-only mappings of cached read versions shared by readers
+    private SharedMappings mappings;
     // remaining size of cache
     private long size_remain;
     // total size of cache
     private long size_total;
+    // free size below which the reclaimer starts evicting
+    private long low_free;
+    // free size the reclaimer evicts up to
+    private long high_free;
     // the server interface
     private ServerInterface server;
+    // storage backend of the cached files
+    private CacheStore store;
+    // deletes files in the background
+    private Trash trash;
+    // sparse files of the modified blocks of overlay writers
+    private File overlay_dir;
     /**
      * Constructor
      *
@@ -30,112 +61,363 @@ public class myCache {
      * @param server interface for communication with server
      */
     public myCache(long size, ServerInterface server) {
-        head = null;
-        tail = null;
+        main = new Segment();
+        probation = new Segment();
+        sketch = new FrequencySketch(1024);
+        long memory_size = Long.getLong("proxy.memory_tier", 0);
+        memory = memory_size > 0 ? new MemoryTier(memory_size) : null;
+        trash = new Trash(new File(Proxy.meta_dir, "trash"));
+        store = new FileStore(trash);
+        overlay_dir = new File(Proxy.meta_dir, "overlays");
+        overlay_dir.mkdirs();
+        // overlays of writers of an earlier run
+        File[] old = overlay_dir.listFiles();
+        if (old != null)
+            for (File file : old)
+                trash.discard(file);
+        if ("segment".equals(System.getProperty("proxy.cache_store"))) {
+            try {
+                store = new SegmentStore(
+                    new File(Proxy.meta_dir, "segments"), trash);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mappings = new SharedMappings(store);
+        // watermarks of free space kept by the reclaimer
+        low_free = (long)(size * Double.parseDouble(
+            System.getProperty("proxy.evict_low", "0.1")));
+        high_free = Math.max(low_free, (long)(size * Double.parseDouble(
+            System.getProperty("proxy.evict_high", "0.2"))));
         cache_map = new HashMap<>();
+        cached_versions = new HashMap<>();
         size_total = size;
         size_remain = size;
         this.server = server;
+        // started last, it must not see a half-built cache
+        Thread reclaimer = new Thread(this::reclaim_loop, "cache-reclaimer");
+        reclaimer.setDaemon(true);
+        reclaimer.start();
     }
 
     /**
      * Prepare the cache for open function 
      *
-     * @param write_path write path of file
      * @param read_path read path  of file
      * @param relative_path relative path of file
-     * @param read_only whether the file is only for read access
      * @param version the latest version number of file
      * @param size the size of file
-     * @return Return 1 if succeeded, otherwise return error number
+     * @param hash content hash of the latest version, -1 if unknown
+     * @return Return 1 if succeeded with the read version pinned, STREAM if
+     * the file does not fit in the cache, otherwise return error number
      */
-    public synchronized int open_cache(String write_path, String read_path, 
-            String relative_path, boolean read_only, int version, long size) {
-        File read_file = new File(read_path);
+    public synchronized int open_cache(String read_path, 
+            String relative_path, int version, long size, long hash) {
+        sketch.increment(relative_path);
+
+        Proxy.local_file cached = Proxy.file_map.get(read_path);
+        if (cached != null && cache_map.containsKey(read_path) 
+            && hash != -1 && cached.hash != -1 && cached.hash != hash) {
+            // the server restarted and reused the version number
+            if (cached.user_count > 0)
+                return STREAM;
+            Proxy.file_map.remove(read_path);
+            cache_remove(read_path);
+        }
 
         if (!cache_map.containsKey(read_path)) {// the file is not cached yet
 
             if (size > size_total)// file size is too large to cache
-                return FileHandling.Errors.ENOMEM;
-            // invalidate and delete all previous versions
-            delete_version(read_path);
+                return STREAM;
+            // a cached version with the same content is copied, an older 
+            // one is the base of a delta fetch, either is pinned so making
+            // room for the new version keeps it
+            String same_path = same_content(read_path, size, hash);
+            String base_path = same_path != null ? same_path 
+                : delta_base(read_path, size);
+            if (base_path == null)// invalidate and delete previous versions
+                delete_version(read_path);
+            else
+                Proxy.file_map.get(base_path).user_count++;
 
-            if (size > size_remain) {// evict to cache the file
-                if (!evict_cache(size)) {
-                    return FileHandling.Errors.ENOMEM;
+            try {
+                if (size > size_remain) {// evict to cache the file
+                    if (!evict_cache(size)) {
+                        return STREAM;
+                    }
+                }
+                boolean fetched = false;
+                if (same_path != null)
+                    fetched = store_fetch(read_path, size, channel -> 
+                        copy_version(channel, same_path));
+                else if (base_path != null) 
+                    fetched = store_fetch(read_path, size, channel -> 
+                        fetch_delta(channel, relative_path, version, size, 
+                            base_path));
+                if (!fetched)
+                    fetched = store_fetch(read_path, size, channel -> 
+                        fetch_file(channel, relative_path, version, size));
+                if (!fetched)
+                    return FileHandling.Errors.EINVAL;
+            } finally {
+                if (base_path != null) {
+                    Proxy.file_map.get(base_path).user_count--;
+                    delete_version(read_path);
                 }
             }
 
-            if(read_file.getParentFile()!=null 
-                && !read_file.getParentFile().exists()) {
-                // create parent directory if it does not exist
-                new File(read_file.getParent()).mkdirs();
-            }
-            if (!fetch_file(read_file, relative_path, size)) 
-                return FileHandling.Errors.EINVAL;
-
             Proxy.local_file local_file = 
                         new Proxy.local_file(relative_path, version, 0, size);
+            local_file.hash = hash;
             // store the file path and file cache info mapping
             Proxy.file_map.put(read_path, local_file);
 
             Node node = new Node(size, read_path);
+            // files seen only once go to the probationary area, so a scan
+            // does not flush the long-term cache
+            node.probation = sketch.frequency(relative_path) < 2;
             // store the file path and cache mapping
             cache_map.put(read_path, node);
+            index_version(read_path);
             // add the file to cache storage
             cache_add(node);
+            if (node.probation)
+                trim_probation(node);
         }
 
-        if (!read_only) {// file is for write access
-            File write_file = new File(write_path);
-            try {
-                if (size > size_remain) {
-                    if (!evict_cache(size)) {
-                        return FileHandling.Errors.ENOMEM;
-                    }
+        // pin the version before the reclaimer can see it
+        Proxy.file_map.get(read_path).user_count++;
+        return 1;
+
+    }
+
+    /**
+     * Make a full writer copy of a cached read version, used when the read
+     * version cannot be mapped as the base of an overlay
+     *
+     * @param write_path write path of file
+     * @param read_path read path  of file
+     * @param relative_path relative path of file
+     * @param version the latest version number of file
+     * @param size the size of file
+     * @return Return 1 if succeeded, STREAM if the copy does not fit in 
+     * the cache
+     */
+    public synchronized int copy_writer(String write_path, String read_path, 
+            String relative_path, int version, long size) {
+        File read_file = store.file(read_path);
+        File write_file = new File(write_path);
+        try {
+            // a blob in a segment has no file of its own, it is copied
+            // through a mapping of it
+            ByteBuffer content = read_file == null ? map(read_path) : null;
+            if (read_file == null && content == null)
+                return STREAM;
+            if (size > size_remain) {
+                if (!evict_cache(size)) {
+                    return STREAM;
                 }
-                // make a new copy
+            }
+            // make a new copy
+            if (read_file != null) {
                 Files.copy(read_file.toPath(), write_file.toPath());
-
-                Proxy.local_file local_file = 
-                        new Proxy.local_file(relative_path, version, 0, size);
-                // store the file path and local file info mapping
-                Proxy.file_map.put(write_path, local_file);
-
-                Node node = new Node(size, write_path);
-                // store the file path and cache mapping
-                cache_map.put(write_path,node);
-                // add to cache storage
-                cache_add(node);
-            } catch (IOException e) {
-                e.printStackTrace();
+            } else {
+                try (FileChannel channel = FileChannel.open(
+                        write_file.toPath(), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE)) {
+                    while (content.hasRemaining())
+                        channel.write(content);
+                }
             }
+
+            Proxy.local_file local_file = 
+                    new Proxy.local_file(relative_path, version, 0, size);
+            // store the file path and local file info mapping
+            Proxy.file_map.put(write_path, local_file);
+
+            Node node = new Node(size, write_path);
+            // store the file path and cache mapping
+            cache_map.put(write_path,node);
+            // add to cache storage
+            cache_add(node);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
         return 1;
 
     }
 
+    /**
+     * Map a cached read version for a single use
+     *
+     * @param read_path read path of file
+     * @return A read-only view of the file, or null if it cannot be mapped
+     */
+    private ByteBuffer map(String read_path) {
+        try {
+            return store.map(read_path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Install a file written on the proxy as a cached read version
+     *
+     * @param file the local file holding the version
+     * @param read_path read path of file
+     * @param relative_path relative path of file
+     * @param version version number of file
+     * @param size the size of file
+     * @return True if cached, false if the file was not taken
+     */
+    public synchronized boolean install_version(File file, String read_path,
+            String relative_path, int version, long size) {
+        if (cache_map.containsKey(read_path) || !evict_cache(size))
+            return false;
+        try {
+            store.adopt(read_path, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        add_version(read_path, relative_path, version, size);
+        return true;
+    }
+
+    /**
+     * Write the merged content of an overlay writer as a cached read version
+     *
+     * @param overlay the overlay writer
+     * @param read_path read path of file
+     * @param relative_path relative path of file
+     * @param version version number of file
+     * @param size the size of file
+     * @return True if cached, false if the cache has no room
+     */
+    public synchronized boolean install_overlay(OverlayFile overlay, 
+            String read_path, String relative_path, int version, long size) {
+        // the modified blocks are merged into the version below
+        unreserve(overlay.uncharge());
+        if (cache_map.containsKey(read_path) || !evict_cache(size))
+            return false;
+        try (CacheStore.Writer writer = store.create(read_path, size)) {
+            overlay.materialize(writer);
+            writer.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        add_version(read_path, relative_path, version, size);
+        return true;
+    }
+
+    /**
+     * Start an overlay writer on top of a cached read version
+     *
+     * @param base view of the read version the writer starts from
+     * @return Return the overlay writer
+     */
+    public OverlayFile new_overlay(ByteBuffer base) throws IOException {
+        File file = File.createTempFile("overlay", null, overlay_dir);
+        try {
+            return new OverlayFile(base, file, this::reserve, 
+                this::unreserve);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Charge bytes held outside the cached files to the cache
+     *
+     * @param bytes number of bytes to charge
+     * @return True if charged, false if eviction cannot make room
+     */
+    public synchronized boolean reserve(long bytes) {
+        if (!evict_cache(bytes))
+            return false;
+        size_remain -= bytes;
+        if (size_remain < low_free)// wake the reclaimer
+            notifyAll();
+        return true;
+    }
+
+    /**
+     * Return bytes charged by reserve to the cache
+     *
+     * @param bytes number of bytes to return
+     */
+    public synchronized void unreserve(long bytes) {
+        size_remain += bytes;
+    }
+
+    /**
+     * Record a stored read version in the cache
+     *
+     * @param read_path read path of file
+     * @param relative_path relative path of file
+     * @param version version number of file
+     * @param size the size of file
+     */
+    private void add_version(String read_path, String relative_path, 
+            int version, long size) {
+        // record the file cache infomration
+        Proxy.local_file local_file = 
+                new Proxy.local_file(relative_path, version, 0, size);
+        Proxy.file_map.putIfAbsent(read_path, local_file);
+        Node node = new Node(size, read_path);
+        cache_map.put(read_path, node);
+        index_version(read_path);
+        cache_add(node);
+    }
+
     /**
      * Invalidate and delete previous versions of file
      *
      * @param read_path read path of file
      */
-    public void delete_version(String read_path) {
+    public synchronized void delete_version(String read_path) {
         String file_path = read_path.split("-v")[0] + "-v";
         // the latest version number
         int curr_version = Integer.parseInt(read_path.split("-v")[1]);
         for (int i = 1; i < curr_version; i++) {
             String delete_path = file_path + i;
-            File delete_file = new File(delete_path);
-            if (delete_file.exists() 
+            if (cache_map.containsKey(delete_path) 
                 && Proxy.file_map.get(delete_path).user_count <= 0) {
                 Proxy.file_map.remove(delete_path);
-                delete_file.delete();
-                // delete from cache storage
-                Node node = cache_map.get(delete_path);
-                cache_delete(node);
-                cache_map.remove(delete_path);
+                cache_remove(delete_path);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached versions of a file older than its latest version,
+     * pinned versions stay until their readers close
+     *
+     * @param relative_path relative path of file
+     * @param version the latest version number, 0 if the file is unlinked
+     */
+    public synchronized void drop_stale(String relative_path, int version) {
+        String prefix = Proxy.cache_dir + '/' + relative_path + "-v";
+        Set<String> paths = cached_versions.get(prefix);
+        if (paths == null)
+            return;
+        for (String read_path : new ArrayList<>(paths)) {
+            int cached;
+            try {// writer copies and other files have another suffix
+                cached = Integer.parseInt(read_path.substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Proxy.local_file local_file = Proxy.file_map.get(read_path);
+            if ((version == 0 || cached < version) && local_file != null 
+                && local_file.user_count <= 0) {
+                Proxy.file_map.remove(read_path);
+                cache_remove(read_path);
             }
         }
     }
@@ -148,68 +430,314 @@ public class myCache {
     public synchronized boolean evict_cache(long size) {
         if (size_remain >= size) 
             return true;
-        Node curr = head;
+        // the probationary area goes first, then the long-term cache
+        return evict_segment(probation, size, -1, null) 
+            || evict_segment(main, size, -1, null);
+    }
+
+    /**
+     * Keep free space between the watermarks in the background, so a miss
+     * only evicts inline when the cache is truly out of space
+     */
+    private synchronized void reclaim_loop() {
+        while (true) {
+            try {
+                boolean pinned = false;
+                if (size_remain < low_free)
+                    pinned = !evict_cache(high_free) && size_remain < low_free;
+                // retry later only if in-use files kept the cache full
+                wait(pinned ? RECLAIM_RETRY : 0);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Keep the probationary area within its share of the cache
+     *
+     * @param keep the newly admitted node, which is never evicted here
+     */
+    private void trim_probation(Node keep) {
+        long limit = (long)(size_total * PROBATION_RATIO);
+        if (probation.size > limit)
+            evict_segment(probation, Long.MAX_VALUE, limit, keep);
+    }
+
+    /**
+     * Evict files of one cache segment based on LRU, until either the cache
+     * has the required size or the segment shrinks to the limit
+     *
+     * @param segment the cache segment to evict from
+     * @param size size required to replace, Long.MAX_VALUE for no target
+     * @param limit segment size to shrink to, -1 for no target
+     * @param keep node which must stay cached, or null
+     * @return True if the cache has the required size
+     */
+    private boolean evict_segment(Segment segment, long size, long limit, 
+            Node keep) {
+        Node curr = segment.head;
         Node next;
         while (curr != null) {// evict from head(least recent)of cache storage
+            if ((size != Long.MAX_VALUE && size_remain >= size) 
+                || (limit >= 0 && segment.size <= limit)) 
+                break;
             next = curr.child;
             // check no user is visiting the file now
-            if (Proxy.file_map.get(curr.read_path).user_count <= 0){
-                File file = new File(curr.read_path);
-                file.delete();
-                cache_delete(curr);
-                cache_map.remove(curr.read_path);
+            if (curr != keep 
+                && Proxy.file_map.get(curr.read_path).user_count <= 0){
+                cache_remove(curr.read_path);
             }
-            if (size_remain >= size) 
-                return true;
             curr = next;
         }
-        return false;
+        return size_remain >= size;
+    }
 
+    /**
+     * Fetcher interface, writes the content of a version to a channel
+     */
+    private interface Fetcher {
+        boolean fetch(WritableByteChannel channel);
     }
 
     /**
-     * Fetch file from server
+     * Fetch a version into a new blob of the store
+     *
+     * @param read_path read path of file
+     * @param size the size of file
+     * @param fetcher writes the content of the version
+     * @return True if the blob was fetched and committed
+     */
+    private boolean store_fetch(String read_path, long size, 
+            Fetcher fetcher) {
+        try (CacheStore.Writer writer = store.create(read_path, size)) {
+            if (!fetcher.fetch(writer)) 
+                return false;
+            writer.commit();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Find the newest older cached version of a file worth a delta fetch
+     *
+     * @param read_path read path of the new version
+     * @param size the size of the new version
+     * @return The read path of the older version, or null if none
+     */
+    private String delta_base(String read_path, long size) {
+        if (size < DELTA_MIN)
+            return null;
+        String file_path = read_path.split("-v")[0] + "-v";
+        int curr_version = Integer.parseInt(read_path.split("-v")[1]);
+        for (int i = curr_version - 1; i >= 1; i--) {
+            Node node = cache_map.get(file_path + i);
+            if (node != null && node.size >= DELTA_MIN)
+                return file_path + i;
+        }
+        return null;
+    }
+
+    /**
+     * Find a cached version of any number with the content the server 
+     * reports, versions are renumbered when the server restarts
      *
-     * @param file file needed to be fetched
+     * @param read_path read path of the version to fetch
+     * @param size the size of file
+     * @param hash content hash of the version, -1 if unknown
+     * @return The read path of the cached version, or null if none
+     */
+    private String same_content(String read_path, long size, long hash) {
+        if (hash == -1)
+            return null;
+        // only the versions of this file, not the whole cache
+        Set<String> cached = cached_versions.get(version_prefix(read_path));
+        if (cached == null)
+            return null;
+        for (String path : cached) {
+            if (path.equals(read_path))
+                continue;
+            Proxy.local_file local_file = Proxy.file_map.get(path);
+            if (local_file != null && local_file.hash == hash 
+                && local_file.size == size)
+                return path;
+        }
+        return null;
+    }
+
+    /**
+     * Fetch a version by copying a cached version with the same content
+     *
+     * @param channel where the fetched file is written
+     * @param same_path read path of the cached version
+     * @return True if succeeded, otherwise return false
+     */
+    boolean copy_version(WritableByteChannel channel, String same_path) {
+        ByteBuffer same = mapping_acquire(same_path);
+        if (same == null)
+            return false;
+        try {
+            ByteBuffer content = same.duplicate();
+            while (content.hasRemaining())
+                channel.write(content);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            mapping_release(same_path);
+        }
+        return true;
+    }
+
+    /**
+     * Fetch a version by copying the blocks an older cached version 
+     * shares with it and downloading only the others
+     *
+     * @param channel where the fetched file is written
      * @param path relative path of file on server
+     * @param version version number of file to fetch
      * @param size the size of file
+     * @param base_path read path of the older version
+     * @return True if succeeded, otherwise return false
      */
-    private boolean fetch_file(File file, String path, long size) {
-        RandomAccessFile randomAccessFile;
+    boolean fetch_delta(WritableByteChannel channel, String path, 
+            int version, long size, String base_path) {
+        ByteBuffer base = mapping_acquire(base_path);
+        if (base == null)
+            return false;
+        long session = -1;
         try {
-            randomAccessFile = new RandomAccessFile(file, "rw");
-        } catch (FileNotFoundException e) {
+            byte[] target = server.get_manifest(path, version);
+            int blocks = BlockManifest.blocks(size);
+            if (target == null 
+                || target.length != blocks * BlockManifest.HASH_LEN)
+                return false;
+            // hash of each block of the base and where it is
+            byte[] local = BlockManifest.compute(base);
+            Map<ByteBuffer, Integer> index = new HashMap<>();
+            for (int j = 0; j < local.length / BlockManifest.HASH_LEN; j++)
+                index.putIfAbsent(ByteBuffer.wrap(local, 
+                    j * BlockManifest.HASH_LEN, BlockManifest.HASH_LEN)
+                    .slice(), j);
+            int chunk_size = (int)2e6;
+            int i = 0;
+            while (i < blocks) {
+                long pos = (long)i * BlockManifest.BLOCK_SIZE;
+                int len = (int)Math.min(BlockManifest.BLOCK_SIZE, size - pos);
+                Integer j = index.get(ByteBuffer.wrap(target, 
+                    i * BlockManifest.HASH_LEN, BlockManifest.HASH_LEN)
+                    .slice());
+                long from = j == null ? -1 
+                    : (long)j * BlockManifest.BLOCK_SIZE;
+                if (j != null && from + len <= base.limit()) {
+                    // the block is unchanged, copy it locally
+                    ByteBuffer block = base.duplicate();
+                    block.position((int)from).limit((int)from + len);
+                    while (block.hasRemaining())
+                        channel.write(block);
+                    i++;
+                    continue;
+                }
+                if (session == -1)
+                    session = server.begin_download(path, version);
+                if (session == -1)
+                    return false;
+                // download the changed block, with the ones right after it
+                int run = 1;
+                while (i + run < blocks 
+                    && (long)(run + 1) * BlockManifest.BLOCK_SIZE 
+                        <= chunk_size
+                    && !index.containsKey(ByteBuffer.wrap(target, 
+                        (i + run) * BlockManifest.HASH_LEN, 
+                        BlockManifest.HASH_LEN).slice()))
+                    run++;
+                int fetch_len = (int)Math.min(
+                    (long)run * BlockManifest.BLOCK_SIZE, size - pos);
+                write_fully(channel, Proxy.compression.fetch(server, path, 
+                    session, fetch_len, pos));
+                i += run;
+            }
+        } catch (Exception e) {
             e.printStackTrace();
             return false;
+        } finally {
+            end_download(session);
+            mapping_release(base_path);
         }
+        return true;
+    }
 
+    /**
+     * Fetch file from server
+     *
+     * @param channel where the fetched file is written
+     * @param path relative path of file on server
+     * @param version version number of file to fetch
+     * @param size the size of file
+     * @return True if succeeded, otherwise return false
+     */
+    boolean fetch_file(WritableByteChannel channel, String path, 
+            int version, long size) {
         byte[] bytes;
+        long session = -1;
 
         try {
+            // the version is resolved once for all chunks
+            session = server.begin_download(path, version);
+            if (session == -1)// the version was superseded and reaped
+                return false;
             int chunk_size = (int)2e6;
-            if (size > chunk_size) { // if too large, fetch in chunks
-                long pos = 0;
-                while (size >= chunk_size) {
-                    bytes = server.get_file(path, chunk_size, pos);
-                    pos += chunk_size;
-                    randomAccessFile.write(bytes);
-                    size -= chunk_size;
-                }
-                if (size > 0) {
-                    bytes = server.get_file(path, (int)size, pos);
-                    randomAccessFile.write(bytes);
-                }
-            } else {// fetch the whole file
-                bytes = server.get_file(path, (int)size, 0);
-                randomAccessFile.write(bytes);
+            long pos = 0;
+            // if too large, fetch in chunks
+            while (pos < size) {
+                int len = (int)Math.min(chunk_size, size - pos);
+                bytes = Proxy.compression.fetch(server, path, session, len, 
+                    pos);
+                write_fully(channel, bytes);
+                pos += len;
             }
         } catch (Exception e) {
             e.printStackTrace();
             return false;
+        } finally {
+            end_download(session);
         }
         return true;
     }
 
+    /**
+     * End a download session quietly
+     *
+     * @param session download session id, or -1 if none
+     */
+    private void end_download(long session) {
+        if (session == -1)
+            return;
+        try {
+            server.end_download(session);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write a fetched chunk fully
+     *
+     * @param channel where the fetched file is written
+     * @param bytes the fetched chunk
+     */
+    private static void write_fully(WritableByteChannel channel, byte[] bytes)
+        throws IOException {
+        if (bytes == null)// the session timed out
+            throw new IOException("Download session expired");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
     /**
      * Node class
      */
@@ -222,6 +750,8 @@ public class myCache {
         Node parent;
         // the next node
         Node child;
+        // whether the node is in the probationary area
+        boolean probation;
 
         /**
          * Constructor
@@ -235,21 +765,37 @@ public class myCache {
         }
     }
 
+    /**
+     * Segment class, one LRU list of cache nodes
+     */
+    private static class Segment {
+        // cache storage head
+        Node head;
+        // cache storage tail
+        Node tail;
+        // total size of files in the segment
+        long size;
+    }
+
     /**
      * Add cache node to cache
      *
      * @param node cache node to add
      */
-    public void cache_add(Node node) {
+    public synchronized void cache_add(Node node) {
         if (node == null) 
             return;
         size_remain -= node.size;
-        if (head == null) {// cold cache
-            head = tail = node;
+        if (size_remain < low_free)// wake the reclaimer
+            notifyAll();
+        Segment segment = node.probation ? probation : main;
+        segment.size += node.size;
+        if (segment.head == null) {// cold cache
+            segment.head = segment.tail = node;
         } else {// add the node to tail
-            tail.child = node;
-            node.parent = tail;
-            tail = node;
+            segment.tail.child = node;
+            node.parent = segment.tail;
+            segment.tail = node;
         }
     }
 
@@ -258,21 +804,23 @@ public class myCache {
      *
      * @param node cache node to delete
      */
-    public void cache_delete(Node node) {
+    public synchronized void cache_delete(Node node) {
         if (node == null)
             return;
         size_remain += node.size;
-        if (head == tail) {// cold cache
-            head = null;
-            tail = null;
-        } else if (head == node) { // the first node
-            head = node.child;
+        Segment segment = node.probation ? probation : main;
+        segment.size -= node.size;
+        if (segment.head == segment.tail) {// cold cache
+            segment.head = null;
+            segment.tail = null;
+        } else if (segment.head == node) { // the first node
+            segment.head = node.child;
             node.child = null;
-            head.parent = null;
-        } else if (tail == node) { // the last node
-            tail = node.parent;
+            segment.head.parent = null;
+        } else if (segment.tail == node) { // the last node
+            segment.tail = node.parent;
             node.parent = null;
-            tail.child = null;
+            segment.tail.child = null;
         } else {
             node.parent.child = node.child;
             node.child.parent = node.parent;
@@ -281,15 +829,121 @@ public class myCache {
         }
     }
 
+    /**
+     * Remove a cached file from memory, disk and cache storage
+     *
+     * @param path the path of file
+     */
+    public synchronized void cache_remove(String path) {
+        if (memory != null)
+            memory.remove(path);
+        mappings.remove(path);
+        store.delete(path);
+        cache_delete(cache_map.remove(path));
+        String prefix = version_prefix(path);
+        Set<String> cached = prefix != null ? cached_versions.get(prefix) 
+            : null;
+        if (cached != null && cached.remove(path) && cached.isEmpty())
+            cached_versions.remove(prefix);
+    }
+
+    /**
+     * Add a cached read version to the versions of its file
+     *
+     * @param read_path read path of file
+     */
+    private void index_version(String read_path) {
+        String prefix = version_prefix(read_path);
+        if (prefix != null)
+            cached_versions.computeIfAbsent(prefix, key -> new HashSet<>())
+                .add(read_path);
+    }
+
+    /**
+     * Get the file path of a read version up to its version number
+     *
+     * @param read_path read path of file
+     * @return The path ending in "-v", or null if it is not a read version
+     */
+    private static String version_prefix(String read_path) {
+        int at = read_path.lastIndexOf("-v");
+        if (at < 0 || at + 2 == read_path.length())
+            return null;
+        for (int i = at + 2; i < read_path.length(); i++)
+            if (!Character.isDigit(read_path.charAt(i)))
+                return null;
+        return read_path.substring(0, at + 2);
+    }
+
+    /**
+     * Get an in-memory view of a cached read version, promoting it from 
+     * disk if it is small and in the long-term cache
+     *
+     * @param path read path of file
+     * @return A read-only view of the file, or null if it stays on disk
+     */
+    public synchronized ByteBuffer memory_acquire(String path) {
+        if (memory == null)
+            return null;
+        ByteBuffer view = memory.acquire(path);
+        if (view != null)
+            return view;
+        Node node = cache_map.get(path);
+        if (node == null || node.probation || node.size > MemoryTier.MAX_FILE)
+            return null;
+        try {
+            return memory.promote(path, store.map(path));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Unpin an in-memory view after its fd is closed
+     *
+     * @param path read path of file
+     */
+    public synchronized void memory_release(String path) {
+        if (memory != null)
+            memory.release(path);
+    }
+
+    /**
+     * Get a view of a cached read version through the mapping shared by 
+     * all its readers
+     *
+     * @param path read path of file
+     * @return A read-only view of the file, or null if it cannot be mapped
+     */
+    public synchronized ByteBuffer mapping_acquire(String path) {
+        return mappings.acquire(path);
+    }
+
+    /**
+     * Unpin a shared mapping after its fd is closed
+     *
+     * @param path read path of file
+     */
+    public synchronized void mapping_release(String path) {
+        mappings.release(path);
+    }
+
     /**
      * update cache node after use based on LRU
      *
      * @param path the path of file
      */
-    public void cache_update(String path) {
+    public synchronized void cache_update(String path) {
         Node node = cache_map.get(path);
         // remove it and add it again to the tail
         cache_delete(node);
+        // a second access promotes it to long-term cache, the close ending
+        // the first access does not
+        Proxy.local_file local_file = Proxy.file_map.get(path);
+        if (node != null && local_file != null 
+            && sketch.frequency(local_file.relative_path) >= 2)
+            node.probation = false;
         cache_add(node);
     }
 